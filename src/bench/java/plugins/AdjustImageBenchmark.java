@@ -0,0 +1,91 @@
+package plugins;
+
+import ij.ImagePlus;
+
+import java.io.File;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import tables.DimensionMap;
+
+/**
+ * Read and adjust a set of planes the way Example_AdjustImage.saveAdjustedImage does, with and without the lookup
+ * tables. The final JEXWriter.saveImage is left out because it needs a running JEX database (see SplitCopyBenchmark
+ * for the cost of writing plane files).
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AdjustImageBenchmark {
+
+	@Param({ "8", "16", "32" })
+	int inputBitDepth;
+
+	@Param({ "16" })
+	int outputBitDepth;
+
+	@Param({ "1024" })
+	int size;
+
+	@Param({ "16" })
+	int planes;
+
+	File folder;
+	TreeMap<DimensionMap,String> imageMap;
+	IntensityLUT.Cache luts;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		this.folder = SyntheticPlanes.makeTempFolder("AdjustImageBenchmark");
+		this.imageMap = SyntheticPlanes.writePlanes(this.folder, this.planes, this.size, this.size, this.inputBitDepth);
+		this.luts = new IntensityLUT.Cache(0, 4095, 0, 65535, 0.5, this.outputBitDepth);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		SyntheticPlanes.delete(this.folder);
+	}
+
+	@Benchmark
+	public void floatPath(Blackhole bh)
+	{
+		this.adjustAll(null, bh);
+	}
+
+	@Benchmark
+	public void lutPath(Blackhole bh)
+	{
+		this.adjustAll(this.luts, bh);
+	}
+
+	private void adjustAll(IntensityLUT.Cache luts, Blackhole bh)
+	{
+		for (String path : this.imageMap.values())
+		{
+			ImagePlus im = new ImagePlus(path);
+			bh.consume(Example_AdjustImage.adjustImage(im.getProcessor(), luts, 0, 4095, 0, 65535, 0.5, this.outputBitDepth));
+			im.flush();
+		}
+	}
+}
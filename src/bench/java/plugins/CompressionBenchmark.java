@@ -0,0 +1,62 @@
+package plugins;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encode a filtered plane as a TIFF with each CompressedTiffWriter compression, per bit depth. The time is the encode
+ * cost; setup prints the file size relative to an uncompressed TIFF so the two can be weighed against each other.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompressionBenchmark {
+
+	@Param({ "8", "16", "32" })
+	int bitDepth;
+
+	@Param({ "None", "LZW", "Deflate", "Deflate (fast)" })
+	String compression;
+
+	@Param({ "2048" })
+	int size;
+
+	ImageProcessor plane;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException
+	{
+		// Filtered noise compresses more like real outputs than raw noise does
+		ImagePlus im = new ImagePlus("plane", SyntheticPlanes.makePlane(this.size, this.size, this.bitDepth, 1));
+		this.plane = Example_Filters.filterImage(im, Example_Filters.MEAN, 2.0, Example_Filters.ENGINE_FAST, this.bitDepth);
+		int uncompressed = CompressedTiffWriter.encode(this.plane, CompressedTiffWriter.NONE).length;
+		int compressed = CompressedTiffWriter.encode(this.plane, this.compression).length;
+		System.out.println(this.bitDepth + "-bit " + this.compression + ": " + compressed + " bytes (" + (100 * (long) compressed / uncompressed) + "% of uncompressed)");
+	}
+
+	@Benchmark
+	public byte[] encode() throws IOException
+	{
+		return CompressedTiffWriter.encode(this.plane, this.compression);
+	}
+}
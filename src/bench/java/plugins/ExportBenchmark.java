@@ -0,0 +1,90 @@
+package plugins;
+
+import java.io.File;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tables.DimensionMap;
+
+/**
+ * The export loop of Example_ExportMultipleFiles (BulkFileCopier) into an empty folder, or into one that already holds
+ * an up to date export when 'fresh' is false.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ExportBenchmark {
+
+	@Param({ "8", "16", "32" })
+	int bitDepth;
+
+	@Param({ "256" })
+	int size;
+
+	@Param({ "200" })
+	int files;
+
+	@Param({ "1", "4" })
+	int threads;
+
+	@Param({ "true", "false" })
+	boolean fresh;
+
+	File folder, target;
+	TreeMap<DimensionMap,String> fileMap;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		this.folder = SyntheticPlanes.makeTempFolder("ExportBenchmark");
+		this.target = new File(this.folder, "export");
+		this.fileMap = SyntheticPlanes.writePlanes(this.folder, this.files, this.size, this.size, this.bitDepth);
+	}
+
+	@Setup(Level.Invocation)
+	public void clearTarget()
+	{
+		if(this.fresh)
+		{
+			SyntheticPlanes.delete(this.target);
+		}
+		this.target.mkdirs();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		SyntheticPlanes.delete(this.folder);
+	}
+
+	@Benchmark
+	public long export()
+	{
+		BulkFileCopier copier = new BulkFileCopier();
+		for (String path : this.fileMap.values())
+		{
+			File f = new File(path);
+			copier.add(f, new File(this.target, "Export - " + f.getName()));
+		}
+		copier.run(null, this.threads, false);
+		return copier.getBytesCopied();
+	}
+}
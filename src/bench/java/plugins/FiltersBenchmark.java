@@ -0,0 +1,64 @@
+package plugins;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The per-plane filtering of Example_Filters with each engine, from the loaded plane to the converted output.
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FiltersBenchmark {
+
+	@Param({ "mean", "max", "variance" })
+	String method;
+
+	@Param({ "2", "10", "25" })
+	double radius;
+
+	@Param({ "8", "16", "32" })
+	int inputBitDepth;
+
+	@Param({ "1024" })
+	int size;
+
+	ImagePlus im;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		this.im = new ImagePlus("plane", SyntheticPlanes.makePlane(this.size, this.size, this.inputBitDepth, 1));
+	}
+
+	@Benchmark
+	public ImageProcessor rankFilters()
+	{
+		return Example_Filters.filterImage(this.im, this.method, this.radius, Example_Filters.ENGINE_RANKFILTERS, 32);
+	}
+
+	@Benchmark
+	public ImageProcessor fastFilters()
+	{
+		return Example_Filters.filterImage(this.im, this.method, this.radius, Example_Filters.ENGINE_FAST, 32);
+	}
+}
@@ -0,0 +1,84 @@
+package plugins;
+
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import jex.utilities.FunctionUtility;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adjust and convert a float plane with FunctionUtility.imAdjust and makeImageToSave versus PixelKernels, per output
+ * bit depth. Setup fails if the two don't give bit-identical pixels on the benchmark plane (PixelKernelsTest covers
+ * parity in general).
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class KernelsBenchmark {
+
+	@Param({ "8", "16", "32" })
+	int outputBitDepth;
+
+	@Param({ "1.0", "0.5" })
+	double gamma;
+
+	@Param({ "2048" })
+	int size;
+
+	float[] source;
+	PixelKernels.Adjust kernel;
+
+	@Setup(Level.Trial)
+	public void setup()
+	{
+		this.source = (float[]) SyntheticPlanes.makePlane(this.size, this.size, 32, 1).getPixels();
+		this.kernel = new PixelKernels.Adjust(0, 4095, 0, 65535, this.gamma, this.outputBitDepth);
+		ImageProcessor expected = this.original();
+		ImageProcessor actual = this.kernels();
+		if(!Arrays.equals(toFloats(expected), toFloats(actual)))
+		{
+			throw new IllegalStateException("PixelKernels.Adjust doesn't match imAdjust/makeImageToSave on the benchmark plane");
+		}
+	}
+
+	@Benchmark
+	public ImageProcessor original()
+	{
+		FloatProcessor fp = new FloatProcessor(this.size, this.size, this.source.clone(), null);
+		FunctionUtility.imAdjust(fp, 0, 4095, 0, 65535, this.gamma);
+		return FunctionUtility.makeImageToSave(fp, "false", this.outputBitDepth).getProcessor();
+	}
+
+	@Benchmark
+	public ImageProcessor kernels()
+	{
+		FloatProcessor fp = new FloatProcessor(this.size, this.size, this.source.clone(), null);
+		return this.kernel.apply(fp, null);
+	}
+
+	private static float[] toFloats(ImageProcessor ip)
+	{
+		float[] ret = new float[ip.getPixelCount()];
+		PixelBufferPool.toFloat(ip, ret);
+		return ret;
+	}
+}
@@ -0,0 +1,94 @@
+package plugins;
+
+import java.io.File;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import tables.DimensionMap;
+
+/**
+ * The per-plane file loop of Example_SplitImage: grouping the plane table by a dimension and copying or linking every
+ * plane file into a new folder (standing in for the database temp folder).
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SplitCopyBenchmark {
+
+	@Param({ "8", "16", "32" })
+	int bitDepth;
+
+	@Param({ "512" })
+	int size;
+
+	@Param({ "64" })
+	int planes;
+
+	@Param({ "copy", "link" })
+	String mode;
+
+	File folder, target;
+	TreeMap<DimensionMap,String> imageMap;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception
+	{
+		this.folder = SyntheticPlanes.makeTempFolder("SplitCopyBenchmark");
+		this.target = new File(this.folder, "split");
+		this.target.mkdirs();
+		this.imageMap = SyntheticPlanes.writePlanes(this.folder, this.planes, this.size, this.size, this.bitDepth);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		SyntheticPlanes.delete(this.folder);
+	}
+
+	@Benchmark
+	public int split() throws Exception
+	{
+		TreeMap<DimensionMap,TreeMap<DimensionMap,String>> groups = Example_SplitImage.groupByDims(this.imageMap, new String[] { "Time" }, false);
+		int count = 0;
+		for (TreeMap<DimensionMap,String> group : groups.values())
+		{
+			for (String path : group.values())
+			{
+				File src = new File(path);
+				File dst = new File(this.target, src.getName());
+				if(dst.exists())
+				{
+					dst.delete();
+				}
+				if("link".equals(this.mode))
+				{
+					FileTransfer.link(src, dst);
+				}
+				else
+				{
+					FileTransfer.copy(src, dst);
+				}
+				count = count + 1;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,95 @@
+package plugins;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.TreeMap;
+
+import tables.DimensionMap;
+
+/**
+ * Synthetic image data for the benchmarks. Planes are written as TIFF files into a temporary folder and described by
+ * the same DimensionMap to path table that ImageReader.readObjectToImagePathTable returns for a real image object.
+ *
+ */
+public class SyntheticPlanes {
+
+	/**
+	 * A plane of noise resembling camera data: 8-bit 0-255, 16-bit 12-bit range (0-4095), or 32-bit around 2000.
+	 */
+	public static ImageProcessor makePlane(int width, int height, int bitDepth, long seed)
+	{
+		Random rand = new Random(seed);
+		int n = width * height;
+		if(bitDepth == 8)
+		{
+			byte[] pixels = new byte[n];
+			for (int i = 0; i < n; i++)
+			{
+				pixels[i] = (byte) rand.nextInt(256);
+			}
+			return new ByteProcessor(width, height, pixels, null);
+		}
+		else if(bitDepth == 16)
+		{
+			short[] pixels = new short[n];
+			for (int i = 0; i < n; i++)
+			{
+				pixels[i] = (short) rand.nextInt(4096);
+			}
+			return new ShortProcessor(width, height, pixels, null);
+		}
+		float[] pixels = new float[n];
+		for (int i = 0; i < n; i++)
+		{
+			pixels[i] = (float) (2000 + 500 * rand.nextGaussian());
+		}
+		return new FloatProcessor(width, height, pixels, null);
+	}
+
+	/**
+	 * Write n planes to folder and return their table indexed by Time.
+	 */
+	public static TreeMap<DimensionMap,String> writePlanes(File folder, int n, int width, int height, int bitDepth)
+	{
+		TreeMap<DimensionMap,String> ret = new TreeMap<DimensionMap,String>();
+		for (int i = 0; i < n; i++)
+		{
+			String path = folder.getAbsolutePath() + File.separator + "x" + i + ".tif";
+			new FileSaver(new ImagePlus("x" + i, makePlane(width, height, bitDepth, i))).saveAsTiff(path);
+			DimensionMap map = new DimensionMap();
+			map.put("Time", "" + i);
+			ret.put(map, path);
+		}
+		return ret;
+	}
+
+	public static File makeTempFolder(String prefix) throws IOException
+	{
+		return Files.createTempDirectory(prefix).toFile();
+	}
+
+	/**
+	 * Delete a folder and everything in it.
+	 */
+	public static void delete(File f)
+	{
+		File[] children = f.listFiles();
+		if(children != null)
+		{
+			for (File child : children)
+			{
+				delete(child);
+			}
+		}
+		f.delete();
+	}
+}
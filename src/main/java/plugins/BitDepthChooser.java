@@ -0,0 +1,241 @@
+package plugins;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import logs.Logs;
+import tables.DimensionMap;
+
+/**
+ * Picks the smallest output bit depth for an "auto" Output Bit-Depth parameter. A sample of the planes is computed as
+ * floats before the run and the range of the results decides: 8 bits if every value is a whole number from 0 to 255,
+ * 16 bits if every value is a whole number from 0 to 65535 (or the range is wide enough that rounding to whole numbers
+ * is negligible), and 32 bits otherwise.
+ *
+ * Planes converted with convert() during the run are checked as well, so pixels of unsampled planes that don't fit the
+ * chosen depth are counted and reported.
+ *
+ */
+public class BitDepthChooser {
+
+	public static final String AUTO = "auto";
+
+	/**
+	 * Planes computed before the run.
+	 */
+	public static final int SAMPLE_PLANES = 8;
+
+	/**
+	 * Smallest range of non-integer values that is still saved as 16 bits (rounding then moves values by at most
+	 * 0.05% of the range).
+	 */
+	public static final double MIN_ROUNDED_RANGE = 1000;
+
+	/**
+	 * Computes the float result of a plane, as the plugin would before converting it.
+	 */
+	public interface PlaneFunction
+	{
+		public ImageProcessor apply(ImagePlus im) throws Exception;
+	}
+
+	private final Stats sampled = new Stats();
+	private final Stats converted = new Stats();
+	private int sampledPlanes = 0;
+	private int bitDepth = 32;
+
+	/**
+	 * @return the bit depth in the parameter value, or 0 for auto
+	 */
+	public static int parse(String bitDepth)
+	{
+		if(AUTO.equals(bitDepth))
+		{
+			return 0;
+		}
+		return Integer.parseInt(bitDepth.trim());
+	}
+
+	/**
+	 * Compute up to nPlanes planes of imageMap, spread evenly from the first to the last, and choose the bit depth
+	 * from their results. Results are released to pool (if not null).
+	 */
+	public static BitDepthChooser sample(TreeMap<DimensionMap,String> imageMap, int nPlanes, PlaneFunction f, PixelBufferPool pool)
+	{
+		BitDepthChooser ret = new BitDepthChooser();
+		List<String> paths = new ArrayList<String>(imageMap.values());
+		int n = Math.min(nPlanes, paths.size());
+		for (int i = 0; i < n; i++)
+		{
+			String path = paths.get(n == 1 ? 0 : (int) ((long) i * (paths.size() - 1) / (n - 1)));
+			if(!(new File(path)).exists())
+			{
+				continue;
+			}
+			try
+			{
+				ImagePlus im = RawPlane.openImage(path);
+				ImageProcessor fp = f.apply(im);
+				im.flush();
+				ret.sampled.add(fp);
+				ret.sampledPlanes = ret.sampledPlanes + 1;
+				if(pool != null)
+				{
+					pool.release(fp);
+				}
+			}
+			catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+		}
+		ret.bitDepth = ret.sampled.choose();
+		return ret;
+	}
+
+	public int getBitDepth()
+	{
+		return this.bitDepth;
+	}
+
+	/**
+	 * Convert a float result to the chosen bit depth, counting pixels that don't fit. fp is released to pool if the
+	 * conversion made a new processor.
+	 */
+	public ImageProcessor convert(ImageProcessor fp, PixelBufferPool pool)
+	{
+		this.converted.add(fp);
+		ImageProcessor ret = pool.toBitDepth(fp, this.bitDepth);
+		if(ret != fp)
+		{
+			pool.release(fp);
+		}
+		return ret;
+	}
+
+	/**
+	 * Log the choice and the statistics it was based on.
+	 */
+	public void log(Object source)
+	{
+		Logs.log("Auto bit depth: " + this.bitDepth + " bits from " + this.sampledPlanes + " sampled planes (" + this.sampled.describe() + ").", source);
+		if(this.converted.n > 0)
+		{
+			Logs.log("Auto bit depth: all planes (" + this.converted.describe() + "), " + this.converted.clipped(this.bitDepth) + " pixels outside the " + this.bitDepth + "-bit range.", source);
+		}
+	}
+
+	/**
+	 * Running min, max, and counts of float pixels.
+	 */
+	private static class Stats
+	{
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		long n = 0;
+		long nonInteger = 0;
+		long notFinite = 0;
+		long below0 = 0;
+		long above255 = 0;
+		long above65535 = 0;
+
+		/**
+		 * Single pass over the pixels, merged under the lock once per plane.
+		 */
+		void add(ImageProcessor ip)
+		{
+			float[] pixels;
+			if(ip.getPixels() instanceof float[])
+			{
+				pixels = (float[]) ip.getPixels();
+			}
+			else
+			{
+				pixels = new float[ip.getPixelCount()];
+				PixelBufferPool.toFloat(ip, pixels);
+			}
+			double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+			long nonInteger = 0, notFinite = 0, below0 = 0, above255 = 0, above65535 = 0;
+			for (float v : pixels)
+			{
+				if(Float.isNaN(v) || Float.isInfinite(v))
+				{
+					notFinite++;
+					continue;
+				}
+				if(v < min)
+				{
+					min = v;
+				}
+				if(v > max)
+				{
+					max = v;
+				}
+				if(v != Math.rint(v))
+				{
+					nonInteger++;
+				}
+				if(v < 0)
+				{
+					below0++;
+				}
+				else if(v > 65535)
+				{
+					above65535++;
+					above255++;
+				}
+				else if(v > 255)
+				{
+					above255++;
+				}
+			}
+			synchronized(this)
+			{
+				this.min = Math.min(this.min, min);
+				this.max = Math.max(this.max, max);
+				this.n = this.n + pixels.length;
+				this.nonInteger = this.nonInteger + nonInteger;
+				this.notFinite = this.notFinite + notFinite;
+				this.below0 = this.below0 + below0;
+				this.above255 = this.above255 + above255;
+				this.above65535 = this.above65535 + above65535;
+			}
+		}
+
+		synchronized int choose()
+		{
+			if(this.n == 0 || this.notFinite > 0 || this.below0 > 0 || this.above65535 > 0)
+			{
+				return 32;
+			}
+			if(this.nonInteger == 0)
+			{
+				return this.above255 == 0 ? 8 : 16;
+			}
+			return (this.max - this.min >= MIN_ROUNDED_RANGE) ? 16 : 32;
+		}
+
+		synchronized long clipped(int bitDepth)
+		{
+			if(bitDepth == 8)
+			{
+				return this.below0 + this.above255;
+			}
+			if(bitDepth == 16)
+			{
+				return this.below0 + this.above65535;
+			}
+			return 0;
+		}
+
+		synchronized String describe()
+		{
+			return "min " + this.min + ", max " + this.max + ", " + this.nonInteger + " of " + this.n + " pixels not whole numbers, " + this.notFinite + " NaN or infinite";
+		}
+	}
+}
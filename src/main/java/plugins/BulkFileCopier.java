@@ -0,0 +1,163 @@
+package plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import logs.Logs;
+import function.plugin.mechanism.JEXPlugin;
+
+/**
+ * Copies (or hard links) a list of files on a bounded pool of threads. Files whose destination already has the same
+ * size and modification time are skipped, and progress is reported per file along with the overall throughput.
+ *
+ */
+public class BulkFileCopier {
+
+	private final Vector<File[]> jobs = new Vector<File[]>();
+	private ProgressReporter progress = null;
+	private final AtomicInteger skipped = new AtomicInteger(0);
+	private final AtomicInteger linked = new AtomicInteger(0);
+	private final AtomicInteger failed = new AtomicInteger(0);
+	private final AtomicLong bytesCopied = new AtomicLong(0);
+	private long elapsedMillis = 0;
+
+	/**
+	 * Queue a file to be transferred.
+	 */
+	public void add(File src, File dst)
+	{
+		this.jobs.add(new File[] { src, dst });
+	}
+
+	public int size()
+	{
+		return this.jobs.size();
+	}
+
+	public int getSkippedCount()
+	{
+		return this.skipped.get();
+	}
+
+	public int getLinkedCount()
+	{
+		return this.linked.get();
+	}
+
+	public int getFailedCount()
+	{
+		return this.failed.get();
+	}
+
+	public long getBytesCopied()
+	{
+		return this.bytesCopied.get();
+	}
+
+	/**
+	 * Throughput of the last run in MB/s (only counting bytes that were actually copied).
+	 */
+	public double getThroughput()
+	{
+		if(this.elapsedMillis <= 0)
+		{
+			return 0;
+		}
+		return (this.bytesCopied.get() / (1024.0 * 1024.0)) / (this.elapsedMillis / 1000.0);
+	}
+
+	/**
+	 * Transfer all queued files.
+	 *
+	 * @param plugin used for cancel checks and as the source of log messages (may be null)
+	 * @param nThreads number of files to transfer at once
+	 * @param allowLink make hard links instead of copies when source and destination share a file system
+	 * @return false if canceled
+	 */
+	public boolean run(final JEXPlugin plugin, int nThreads, final boolean allowLink)
+	{
+		this.skipped.set(0);
+		this.linked.set(0);
+		this.failed.set(0);
+		this.bytesCopied.set(0);
+		final int total = this.jobs.size();
+		long start = System.currentTimeMillis();
+		this.progress = new ProgressReporter(plugin == null ? this : plugin, total);
+		this.progress.setMessageLevel(1);
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nThreads));
+		try
+		{
+			for (final File[] job : this.jobs)
+			{
+				pool.execute(new Runnable(){
+					@Override
+					public void run()
+					{
+						if(plugin != null && plugin.isCanceled())
+						{
+							return;
+						}
+						BulkFileCopier.this.transfer(job[0], job[1], allowLink, total);
+					}
+				});
+			}
+			pool.shutdown();
+			while(!pool.awaitTermination(100, TimeUnit.MILLISECONDS))
+			{
+				if(plugin != null && plugin.isCanceled())
+				{
+					pool.shutdownNow();
+					return false;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		finally
+		{
+			pool.shutdownNow();
+			this.elapsedMillis = System.currentTimeMillis() - start;
+			this.progress.finish();
+		}
+
+		Logs.log("Transferred " + total + " files in " + (this.elapsedMillis / 1000.0) + " s (" + this.linked.get() + " linked, " + this.skipped.get() + " already up to date, " + this.failed.get() + " failed). Copied " + this.bytesCopied.get() + " bytes at " + String.format("%.1f", this.getThroughput()) + " MB/s.", 1, plugin == null ? this : plugin);
+		return plugin == null || !plugin.isCanceled();
+	}
+
+	private void transfer(File src, File dst, boolean allowLink, int total)
+	{
+		try
+		{
+			if(FileTransfer.isUpToDate(src, dst))
+			{
+				this.skipped.incrementAndGet();
+			}
+			else
+			{
+				long bytes = FileTransfer.linkOrCopy(src, dst, allowLink);
+				if(bytes == 0 && src.length() > 0)
+				{
+					this.linked.incrementAndGet();
+				}
+				this.bytesCopied.addAndGet(bytes);
+			}
+		}
+		catch (IOException e)
+		{
+			this.failed.incrementAndGet();
+			e.printStackTrace();
+		}
+		this.progress.planeFinished();
+		this.progress.log("Finished " + this.progress.getDone() + " of " + total + ": " + dst.getName());
+	}
+}
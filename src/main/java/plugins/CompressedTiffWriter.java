@@ -0,0 +1,412 @@
+package plugins;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+import Database.SingleUserDatabase.JEXWriter;
+
+/**
+ * Saves 8, 16, and 32-bit planes as LZW or Deflate compressed TIFFs that ImageJ (and therefore JEX) reads back
+ * directly. JEXWriter.saveImage only writes uncompressed TIFFs, which for 32-bit filtered images costs several times
+ * the storage and read time of a compressed file.
+ *
+ * Each plane is split into strips of about STRIP_BYTES that are compressed independently on a pool of encoding
+ * threads shared by all plugins, so the time to encode a large plane is spread over the processors instead of being
+ * added to the thread that writes it.
+ *
+ */
+public class CompressedTiffWriter {
+
+	public static final String NONE = "None", LZW = "LZW", DEFLATE = "Deflate", DEFLATE_FAST = "Deflate (fast)";
+
+	/**
+	 * Description of every "Output Compression" parameter.
+	 */
+	public static final String DESCRIPTION = "Compression of TIFF outputs. LZW and Deflate are lossless and usually make 16 and 32-bit planes much smaller at the cost of encoding time (Deflate (fast) trades some size for speed). Raw outputs are never compressed.";
+
+	/**
+	 * Choices for a plugin's compression parameter, in the order above.
+	 */
+	public static final String[] CHOICES = { NONE, LZW, DEFLATE, DEFLATE_FAST };
+
+	/**
+	 * Uncompressed size of a strip.
+	 */
+	public static final int STRIP_BYTES = 64 * 1024;
+
+	private static final int TIFF_NONE = 1, TIFF_LZW = 5, TIFF_DEFLATE = 8;
+
+	private static ExecutorService encodePool = null;
+
+	/**
+	 * Save ip as a TIFF in the database temp folder with the given compression (one of CHOICES). Uncompressed and
+	 * color planes are saved by JEXWriter.saveImage.
+	 *
+	 * @return the path of the new temp file
+	 */
+	public static String save(ImageProcessor ip, String compression) throws IOException
+	{
+		if(compression == null || NONE.equals(compression) || !supports(ip))
+		{
+			return JEXWriter.saveImage(ip);
+		}
+		File f = new File(JEXWriter.getDatabaseFolder() + File.separator + JEXWriter.getUniqueRelativeTempPath("tif"));
+		f.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(f);
+		try
+		{
+			write(ip, compression, out);
+		}
+		finally
+		{
+			out.close();
+		}
+		return f.getAbsolutePath();
+	}
+
+	/**
+	 * The complete TIFF file for ip, in memory (e.g., to measure the compressed size).
+	 */
+	public static byte[] encode(ImageProcessor ip, String compression) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		write(ip, compression, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * 8-bit, 16-bit, and float planes can be compressed.
+	 */
+	public static boolean supports(ImageProcessor ip)
+	{
+		return ip instanceof ByteProcessor || ip instanceof ShortProcessor || ip instanceof FloatProcessor;
+	}
+
+	/**
+	 * Write a little-endian, single image TIFF: header, IFD, strip offsets and byte counts, then the strips.
+	 */
+	public static void write(ImageProcessor ip, String compression, OutputStream out) throws IOException
+	{
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		int bytesPerPixel = ip.getBitDepth() / 8;
+		int rowsPerStrip = Math.max(1, Math.min(height, STRIP_BYTES / Math.max(1, width * bytesPerPixel)));
+		int nStrips = (height + rowsPerStrip - 1) / rowsPerStrip;
+		byte[][] strips = encodeStrips(ip, compression, rowsPerStrip, nStrips);
+
+		int nEntries = 10;
+		int ifdSize = 2 + nEntries * 12 + 4;
+		int arraysOffset = 8 + ifdSize;
+		int dataOffset = nStrips > 1 ? arraysOffset + 8 * nStrips : arraysOffset;
+		ByteBuffer head = ByteBuffer.allocate(dataOffset).order(ByteOrder.LITTLE_ENDIAN);
+		head.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+
+		// IFD entries in increasing tag order
+		head.putShort((short) nEntries);
+		putEntry(head, 256, 4, 1, width);
+		putEntry(head, 257, 4, 1, height);
+		putEntry(head, 258, 3, 1, ip.getBitDepth());
+		putEntry(head, 259, 3, 1, tiffCompression(compression));
+		putEntry(head, 262, 3, 1, 1);
+		putEntry(head, 273, 4, nStrips, nStrips > 1 ? arraysOffset : dataOffset);
+		putEntry(head, 277, 3, 1, 1);
+		putEntry(head, 278, 4, 1, rowsPerStrip);
+		putEntry(head, 279, 4, nStrips, nStrips > 1 ? arraysOffset + 4 * nStrips : strips[0].length);
+		putEntry(head, 339, 3, 1, ip instanceof FloatProcessor ? 3 : 1);
+		head.putInt(0);
+
+		if(nStrips > 1)
+		{
+			int offset = dataOffset;
+			for (int i = 0; i < nStrips; i++)
+			{
+				head.putInt(offset);
+				offset = offset + strips[i].length;
+			}
+			for (int i = 0; i < nStrips; i++)
+			{
+				head.putInt(strips[i].length);
+			}
+		}
+		out.write(head.array());
+		for (byte[] strip : strips)
+		{
+			out.write(strip);
+		}
+	}
+
+	private static void putEntry(ByteBuffer b, int tag, int type, int count, int value)
+	{
+		b.putShort((short) tag).putShort((short) type).putInt(count);
+		if(type == 3 && count == 1)
+		{
+			b.putShort((short) value).putShort((short) 0);
+		}
+		else
+		{
+			b.putInt(value);
+		}
+	}
+
+	private static int tiffCompression(String compression)
+	{
+		if(LZW.equals(compression))
+		{
+			return TIFF_LZW;
+		}
+		if(DEFLATE.equals(compression) || DEFLATE_FAST.equals(compression))
+		{
+			return TIFF_DEFLATE;
+		}
+		return TIFF_NONE;
+	}
+
+	/**
+	 * Compress each strip, on the encode pool when there is more than one.
+	 */
+	private static byte[][] encodeStrips(final ImageProcessor ip, final String compression, final int rowsPerStrip, int nStrips) throws IOException
+	{
+		byte[][] ret = new byte[nStrips][];
+		if(nStrips == 1)
+		{
+			ret[0] = encodeStrip(ip, compression, 0, ip.getHeight());
+			return ret;
+		}
+		List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(nStrips);
+		for (int i = 0; i < nStrips; i++)
+		{
+			final int y0 = i * rowsPerStrip;
+			final int y1 = Math.min(ip.getHeight(), y0 + rowsPerStrip);
+			futures.add(getEncodePool().submit(new Callable<byte[]>(){
+				@Override
+				public byte[] call() throws IOException
+				{
+					return encodeStrip(ip, compression, y0, y1);
+				}
+			}));
+		}
+		try
+		{
+			for (int i = 0; i < nStrips; i++)
+			{
+				ret[i] = futures.get(i).get();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while compressing", e);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException("Couldn't compress strip", e.getCause());
+		}
+		finally
+		{
+			for (Future<byte[]> f : futures)
+			{
+				f.cancel(true);
+			}
+		}
+		return ret;
+	}
+
+	private static byte[] encodeStrip(ImageProcessor ip, String compression, int y0, int y1) throws IOException
+	{
+		byte[] raw = toBytes(ip, y0, y1);
+		if(LZW.equals(compression))
+		{
+			return lzw(raw);
+		}
+		if(DEFLATE.equals(compression) || DEFLATE_FAST.equals(compression))
+		{
+			return deflate(raw, DEFLATE_FAST.equals(compression) ? Deflater.BEST_SPEED : Deflater.DEFAULT_COMPRESSION);
+		}
+		return raw;
+	}
+
+	/**
+	 * Rows y0 to y1 (exclusive) of ip as little-endian bytes.
+	 */
+	private static byte[] toBytes(ImageProcessor ip, int y0, int y1)
+	{
+		int width = ip.getWidth();
+		int from = y0 * width;
+		int to = y1 * width;
+		if(ip instanceof ByteProcessor)
+		{
+			return Arrays.copyOfRange((byte[]) ip.getPixels(), from, to);
+		}
+		ByteBuffer b = ByteBuffer.allocate((to - from) * (ip.getBitDepth() / 8)).order(ByteOrder.LITTLE_ENDIAN);
+		if(ip instanceof ShortProcessor)
+		{
+			b.asShortBuffer().put((short[]) ip.getPixels(), from, to - from);
+		}
+		else
+		{
+			b.asFloatBuffer().put((float[]) ip.getPixels(), from, to - from);
+		}
+		return b.array();
+	}
+
+	private static byte[] deflate(byte[] raw, int level)
+	{
+		Deflater deflater = new Deflater(level);
+		try
+		{
+			deflater.setInput(raw);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 64);
+			byte[] buf = new byte[8192];
+			while(!deflater.finished())
+			{
+				int n = deflater.deflate(buf);
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+
+	/**
+	 * TIFF flavored LZW: MSB first codes of 9 to 12 bits, starting with a clear code and ending with an end of
+	 * information code, widening one code early as the TIFF specification requires.
+	 */
+	static byte[] lzw(byte[] raw)
+	{
+		final int CLEAR = 256, EOI = 257, FIRST = 258, LIMIT = 4094;
+		LZWOutput out = new LZWOutput(raw.length / 2 + 64);
+		int[] keys = new int[8192];
+		short[] codes = new short[8192];
+		Arrays.fill(keys, -1);
+		int nextCode = FIRST;
+		int width = 9;
+		out.write(CLEAR, width);
+		if(raw.length == 0)
+		{
+			out.write(EOI, width);
+			return out.toByteArray();
+		}
+		int prefix = raw[0] & 0xff;
+		for (int i = 1; i < raw.length; i++)
+		{
+			int b = raw[i] & 0xff;
+			int key = (prefix << 8) | b;
+			int slot = (key * 0x9E3779B1) >>> 19;
+			while(keys[slot] != -1 && keys[slot] != key)
+			{
+				slot = (slot + 1) & 8191;
+			}
+			if(keys[slot] == key)
+			{
+				prefix = codes[slot];
+				continue;
+			}
+			out.write(prefix, width);
+			keys[slot] = key;
+			codes[slot] = (short) nextCode;
+			nextCode = nextCode + 1;
+			if(nextCode > (1 << width) - 1 && width < 12)
+			{
+				width = width + 1;
+			}
+			if(nextCode == LIMIT)
+			{
+				out.write(CLEAR, width);
+				Arrays.fill(keys, -1);
+				nextCode = FIRST;
+				width = 9;
+			}
+			prefix = b;
+		}
+		out.write(prefix, width);
+		// The decoder adds one more entry after reading the last code, which can widen the end code
+		if(nextCode + 1 > (1 << width) - 1 && width < 12)
+		{
+			width = width + 1;
+		}
+		out.write(EOI, width);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Packs codes MSB first.
+	 */
+	private static class LZWOutput
+	{
+		private final ByteArrayOutputStream out;
+		private int buffer = 0;
+		private int nBits = 0;
+
+		LZWOutput(int size)
+		{
+			this.out = new ByteArrayOutputStream(size);
+		}
+
+		void write(int code, int width)
+		{
+			this.buffer = (this.buffer << width) | code;
+			this.nBits = this.nBits + width;
+			while(this.nBits >= 8)
+			{
+				this.nBits = this.nBits - 8;
+				this.out.write((this.buffer >>> this.nBits) & 0xff);
+			}
+			this.buffer = this.buffer & ((1 << this.nBits) - 1);
+		}
+
+		byte[] toByteArray()
+		{
+			if(this.nBits > 0)
+			{
+				this.out.write((this.buffer << (8 - this.nBits)) & 0xff);
+				this.nBits = 0;
+				this.buffer = 0;
+			}
+			return this.out.toByteArray();
+		}
+	}
+
+	private static synchronized ExecutorService getEncodePool()
+	{
+		if(encodePool == null)
+		{
+			encodePool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory(){
+				private final AtomicInteger count = new AtomicInteger(0);
+
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "CompressedTiffWriter-" + this.count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return encodePool;
+	}
+}
@@ -12,11 +12,12 @@ import function.plugin.mechanism.OutputMarker;
 import function.plugin.mechanism.ParameterMarker;
 import ij.ImagePlus;
 import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.TreeMap;
 
-import jex.statics.JEXStatics;
 import jex.utilities.FunctionUtility;
 
 import org.scijava.plugin.Plugin;
@@ -41,7 +42,7 @@ import tables.DimensionMap;
 		visible=true,
 		description="Adjust image intensities, mapping old min and max to new min and max, respectively."
 		)
-public class Example_AdjustImage extends JEXPlugin {
+public class Example_AdjustImage extends JEXPlugin implements PlaneParallelSafe {
 
 	public Example_AdjustImage()
 	{}
@@ -51,6 +52,9 @@ public class Example_AdjustImage extends JEXPlugin {
 	@InputMarker(uiOrder=1, name="Image", type=MarkerConstants.TYPE_IMAGE, description="Image to be adjusted.", optional=false)
 	JEXData imageData;
 	
+	@InputMarker(uiOrder=2, name="Previous Output", type=MarkerConstants.TYPE_IMAGE, description="Adjusted image from the last run on this entry. Used with the Incremental State Folder to only adjust new or changed planes.", optional=true)
+	JEXData previousData;
+	
 	/////////// Define Parameters ///////////
 	
 	@ParameterMarker(uiOrder=1, name="Old Min", description="Image Intensity Value", ui=MarkerConstants.UI_TEXTFIELD, defaultText="0.0")
@@ -68,8 +72,44 @@ public class Example_AdjustImage extends JEXPlugin {
 	@ParameterMarker(uiOrder=5, name="Gamma", description="0.1-5.0, value of 1 results in no change", ui=MarkerConstants.UI_TEXTFIELD, defaultText="1.0")
 	double gamma;
 	
-	@ParameterMarker(uiOrder=6, name="Output Bit Depth", description="Depth of the outputted image", ui=MarkerConstants.UI_DROPDOWN, choices={ "8", "16", "32" }, defaultChoice=1)
-	int bitDepth;
+	@ParameterMarker(uiOrder=6, name="Output Bit Depth", description="Depth of the outputted image (auto picks the smallest depth that holds the adjusted values of a sample of planes)", ui=MarkerConstants.UI_DROPDOWN, choices={ "8", "16", "32", "auto" }, defaultChoice=1)
+	String bitDepth;
+	
+	@ParameterMarker(uiOrder=7, name="Plane Threads", description="Number of planes to adjust" + PlaneExecutor.THREADS_DESCRIPTION, ui=MarkerConstants.UI_TEXTFIELD, defaultText="1")
+	int planeThreads;
+	
+	@ParameterMarker(uiOrder=8, name="Prefetch Planes", description="Number of planes to read ahead and hold while waiting to be adjusted or saved (0 turns off the read/adjust/write pipeline)", ui=MarkerConstants.UI_TEXTFIELD, defaultText="0")
+	int prefetch;
+	
+	@ParameterMarker(uiOrder=9, name="Metrics Folder", description=PluginMetrics.FOLDER_DESCRIPTION, ui=MarkerConstants.UI_FILECHOOSER, defaultText="")
+	String metricsFolder;
+	
+	@ParameterMarker(uiOrder=10, name="Cache Folder", description=ResultCache.FOLDER_DESCRIPTION, ui=MarkerConstants.UI_FILECHOOSER, defaultText="")
+	String cacheFolder;
+	
+	@ParameterMarker(uiOrder=11, name="Cache Size (GB)", description=ResultCache.SIZE_DESCRIPTION, ui=MarkerConstants.UI_TEXTFIELD, defaultText="10.0")
+	double cacheSize;
+	
+	@ParameterMarker(uiOrder=12, name="Incremental State Folder", description="Folder in which to remember the input planes of each run so later runs only adjust new or changed planes (requires the Previous Output input). Leave blank to adjust every plane.", ui=MarkerConstants.UI_FILECHOOSER, defaultText="")
+	String stateFolder;
+	
+	@ParameterMarker(uiOrder=13, name="Output Format", description=RawPlane.FORMAT_DESCRIPTION, ui=MarkerConstants.UI_DROPDOWN, choices={ "TIFF", "Raw (memory-mapped)" }, defaultChoice=0)
+	String outputFormat;
+	
+	@ParameterMarker(uiOrder=14, name="Lazy Output", description="Only save how to compute each plane and adjust it the first time it is read, which finishes immediately. Use 'Example - Materialize Lazy Image' before archiving or deleting the input image.", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=false)
+	boolean lazy;
+	
+	@ParameterMarker(uiOrder=15, name="Journal Folder", description="Folder in which to register each adjusted plane as soon as it is saved. If a run is canceled or crashes, running it again on the same image files with the same parameters skips the planes already registered, as long as JEX hasn't cleaned up their temp files. The journal is deleted once a run completes. Leave blank to turn off.", ui=MarkerConstants.UI_FILECHOOSER, defaultText="")
+	String journalFolder;
+	
+	@ParameterMarker(uiOrder=16, name="Output Compression", description=CompressedTiffWriter.DESCRIPTION, ui=MarkerConstants.UI_DROPDOWN, choices={ "None", "LZW", "Deflate", "Deflate (fast)" }, defaultChoice=0)
+	String compression;
+	
+	@ParameterMarker(uiOrder=17, name="Preview", description="Only adjust the first, middle, and last planes of each dimension at a reduced size to quickly try out parameters. Lazy output, caching, incremental runs, and the journal are not used.", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=false)
+	boolean preview;
+	
+	@ParameterMarker(uiOrder=18, name="Preview Scale", description=PreviewSampler.SCALE_DESCRIPTION, ui=MarkerConstants.UI_TEXTFIELD, defaultText="0.25")
+	double previewScale;
 	
 	/////////// Define Outputs ///////////
 	
@@ -94,21 +134,81 @@ public class Example_AdjustImage extends JEXPlugin {
 		
 		// Run the function
 		TreeMap<DimensionMap,String> imageMap = ImageReader.readObjectToImagePathTable(imageData);
-		TreeMap<DimensionMap,String> outputImageMap = new TreeMap<DimensionMap,String>();
-		int count = 0, percentage = 0;
-		String tempPath;
-		for (DimensionMap map : imageMap.keySet())
+		final double scale = preview ? previewScale : 1;
+		if(preview)
+		{
+			// A few planes at a reduced size
+			TreeMap<DimensionMap,String> previewMap = PreviewSampler.sample(imageMap, PreviewSampler.MAX_PLANES);
+			PreviewSampler.log(imageMap, previewMap, scale, this);
+			imageMap = previewMap;
+		}
+		final PixelBufferPool pool = PixelBufferPool.getShared();
+		final int depth = this.chooseBitDepth(imageMap, pool, scale);
+		if(lazy && !preview)
+		{
+			return this.saveLazyOutput(imageMap, depth);
+		}
+		final IntensityLUT.Cache luts = new IntensityLUT.Cache(oldMin, oldMax, newMin, newMax, gamma, depth);
+		final boolean raw = RawPlane.FORMAT_RAW.equals(outputFormat);
+		final PluginMetrics metrics = new PluginMetrics("Example_AdjustImage");
+		PlanePipeline.Stages<ImagePlus,ImageProcessor> stages = new PlanePipeline.Stages<ImagePlus,ImageProcessor>(){
+			@Override
+			public ImagePlus read(DimensionMap map, String path) throws IOException
+			{
+				if(!(new File(path)).exists())
+				{
+					return null;
+				}
+				long t = metrics.start();
+				ImagePlus im = PreviewSampler.downsample(RawPlane.openImage(path), scale);
+				metrics.read(map, path, t);
+				return im;
+			}
+			
+			@Override
+			public ImageProcessor process(DimensionMap map, ImagePlus im)
+			{
+				long t = metrics.start();
+				ImageProcessor ret = adjustImage(im.getProcessor(), luts, pool, oldMin, oldMax, newMin, newMax, gamma, depth);
+				im.flush();
+				metrics.compute(map, t);
+				return ret;
+			}
+			
+			@Override
+			public String write(DimensionMap map, ImageProcessor toSave) throws IOException
+			{
+				long t = metrics.start();
+				String path = RawPlane.saveImage(toSave, raw, compression);
+				pool.release(toSave);
+				metrics.write(map, path, t);
+				return path;
+			}
+		};
+		
+		PlaneJob<ImagePlus,ImageProcessor> job = new PlaneJob<ImagePlus,ImageProcessor>(this, stages);
+		job.setThreads(planeThreads, prefetch);
+		job.setMetrics(metrics, metricsFolder);
+		job.setOutputExtension(raw ? RawPlane.EXTENSION : "tif");
+		if(!preview)
 		{
-			tempPath = saveAdjustedImage(imageMap.get(map), oldMin, oldMax, newMin, newMax, gamma, bitDepth);
-			if(tempPath != null)
+			// The depth actually used, so an auto run matches a run with that depth and not other auto runs
+			String fingerprint = ParameterFingerprint.of(this, "oldMin", "oldMax", "newMin", "newMax", "gamma", "outputFormat", "compression") + ";bitDepth=" + depth;
+			job.setCache(cacheFolder, cacheSize, fingerprint);
+			if(stateFolder != null && !stateFolder.trim().equals(""))
 			{
-				outputImageMap.put(map, tempPath);
+				TreeMap<DimensionMap,String> previousMap = null;
+				if(previousData != null && previousData.getTypeName().getType().equals(JEXData.IMAGE))
+				{
+					previousMap = ImageReader.readObjectToImagePathTable(previousData);
+				}
+				job.setIncremental(IncrementalManifest.load(new File(stateFolder), this, optionalEntry, imageData.getTypeName().toString(), fingerprint), previousMap);
 			}
-			count = count + 1;
-			percentage = (int) (100 * ((double) (count) / ((double) imageMap.size())));
-			JEXStatics.statusBar.setProgressPercentage(percentage);
+			job.setCheckpoint(journalFolder, fingerprint);
 		}
-		if(outputImageMap.size() == 0)
+		TreeMap<DimensionMap,String> outputImageMap = job.run(imageMap);
+		pool.log(this);
+		if(outputImageMap == null || outputImageMap.size() == 0)
 		{
 			return false;
 		}
@@ -119,7 +219,72 @@ public class Example_AdjustImage extends JEXPlugin {
 		return true;
 	}
 	
+	/**
+	 * The Output Bit Depth, or if it is auto the smallest depth that holds the adjusted values of a sample of planes.
+	 * Adjusted values are limited to New Min to New Max, so the sample is a good guide for the planes that weren't
+	 * sampled.
+	 */
+	private int chooseBitDepth(TreeMap<DimensionMap,String> imageMap, final PixelBufferPool pool, final double scale)
+	{
+		if(!BitDepthChooser.AUTO.equals(bitDepth))
+		{
+			return BitDepthChooser.parse(bitDepth);
+		}
+		BitDepthChooser chooser = BitDepthChooser.sample(imageMap, BitDepthChooser.SAMPLE_PLANES, new BitDepthChooser.PlaneFunction(){
+			@Override
+			public ImageProcessor apply(ImagePlus im)
+			{
+				return adjustImage(PreviewSampler.downsample(im, scale).getProcessor(), null, pool, oldMin, oldMax, newMin, newMax, gamma, 32);
+			}
+		}, pool);
+		chooser.log(this);
+		return chooser.getBitDepth();
+	}
+	
+	/**
+	 * Output a recipe per plane instead of adjusting them (see LazyPlane).
+	 */
+	private boolean saveLazyOutput(TreeMap<DimensionMap,String> imageMap, int depth)
+	{
+		TreeMap<DimensionMap,String> recipeMap = new TreeMap<DimensionMap,String>();
+		try
+		{
+			for (DimensionMap map : imageMap.keySet())
+			{
+				if(this.isCanceled())
+				{
+					return false;
+				}
+				String path = imageMap.get(map);
+				if((new File(path)).exists())
+				{
+					recipeMap.put(map, LazyPlane.saveAdjust(path, oldMin, oldMax, newMin, newMax, gamma, depth));
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+		if(recipeMap.size() == 0)
+		{
+			return false;
+		}
+		this.output = ImageWriter.makeImageStackFromPaths("temp", recipeMap);
+		return true;
+	}
+	
 	public static String saveAdjustedImage(String imagePath, double oldMin, double oldMax, double newMin, double newMax, double gamma, int bitDepth)
+	{
+		return saveAdjustedImage(imagePath, null, oldMin, oldMax, newMin, newMax, gamma, bitDepth);
+	}
+	
+	/**
+	 * Adjust and save the image at imagePath. 8- and 16-bit images are mapped through the lookup tables in luts when
+	 * provided, everything else (or luts == null) goes through the float path.
+	 */
+	public static String saveAdjustedImage(String imagePath, IntensityLUT.Cache luts, double oldMin, double oldMax, double newMin, double newMax, double gamma, int bitDepth)
 	{
 		// Get image data
 		File f = new File(imagePath);
@@ -128,17 +293,56 @@ public class Example_AdjustImage extends JEXPlugin {
 			return null;
 		}
 		ImagePlus im = new ImagePlus(imagePath);
-		FloatProcessor imp = (FloatProcessor) im.getProcessor().convertToFloat(); // should be a float processor
 		
 		// Adjust the image
-		FunctionUtility.imAdjust(imp, oldMin, oldMax, newMin, newMax, gamma);
+		ImageProcessor toSave = adjustImage(im.getProcessor(), luts, oldMin, oldMax, newMin, newMax, gamma, bitDepth);
 		
 		// Save the results
-		ImagePlus toSave = FunctionUtility.makeImageToSave(imp, "false", bitDepth);
 		String imPath = JEXWriter.saveImage(toSave);
 		im.flush();
 		
 		// return temp filePath
 		return imPath;
 	}
+	
+	/**
+	 * Adjust the intensities of ip and convert to bitDepth, returning a new processor.
+	 */
+	public static ImageProcessor adjustImage(ImageProcessor ip, IntensityLUT.Cache luts, double oldMin, double oldMax, double newMin, double newMax, double gamma, int bitDepth)
+	{
+		return adjustImage(ip, luts, null, oldMin, oldMax, newMin, newMax, gamma, bitDepth);
+	}
+	
+	/**
+	 * Same as adjustImage but working and output pixel arrays are borrowed from pool when it isn't null. Release the
+	 * result to the pool once it has been saved. Float planes use the array kernel from luts.
+	 */
+	public static ImageProcessor adjustImage(ImageProcessor ip, IntensityLUT.Cache luts, PixelBufferPool pool, double oldMin, double oldMax, double newMin, double newMax, double gamma, int bitDepth)
+	{
+		// Use the lookup table if we can
+		IntensityLUT lut = (luts == null) ? null : luts.get(ip);
+		if(lut != null)
+		{
+			return lut.apply(ip, pool);
+		}
+		
+		FloatProcessor imp = (FloatProcessor) (pool == null ? ip.convertToFloat() : pool.toFloat(ip)); // should be a float processor
+		ImageProcessor ret;
+		PixelKernels.Adjust kernel = (luts == null) ? null : luts.getKernel();
+		if(kernel != null)
+		{
+			// Array kernel, same pixels as the code below (see PixelKernelsTest)
+			ret = kernel.apply(imp, pool);
+		}
+		else
+		{
+			FunctionUtility.imAdjust(imp, oldMin, oldMax, newMin, newMax, gamma);
+			ret = FunctionUtility.makeImageToSave(imp, "false", bitDepth).getProcessor();
+		}
+		if(pool != null && ret.getPixels() != imp.getPixels())
+		{
+			pool.release(imp);
+		}
+		return ret;
+	}
 }
@@ -0,0 +1,101 @@
+package plugins;
+
+import java.io.File;
+import java.util.TreeMap;
+
+import org.scijava.plugin.Plugin;
+
+import tables.DimensionMap;
+import Database.DBObjects.JEXData;
+import Database.DBObjects.JEXEntry;
+import Database.DataReader.ImageReader;
+import Database.DataWriter.ImageWriter;
+import function.plugin.mechanism.InputMarker;
+import function.plugin.mechanism.JEXPlugin;
+import function.plugin.mechanism.MarkerConstants;
+import function.plugin.mechanism.OutputMarker;
+import function.plugin.mechanism.ParameterMarker;
+
+/**
+ * Converts the planes of an image object between TIFF and the memory mapped raw plane format (see RawPlane). Convert
+ * to raw at the start of a chain of plugins that save raw planes and back to TIFF at the end to view or export them.
+ *
+ */
+
+@Plugin(
+		type = JEXPlugin.class,
+		name="Example - Convert Raw Planes",
+		menuPath="Template Functions",
+		visible=true,
+		description="Convert image planes between TIFF and the uncompressed, memory-mapped raw plane format."
+		)
+public class Example_ConvertRawPlanes extends JEXPlugin implements PlaneParallelSafe {
+
+	public static String TO_RAW = "TIFF to raw", TO_TIFF = "Raw to TIFF";
+
+	public Example_ConvertRawPlanes()
+	{}
+
+	/////////// Define Inputs ///////////
+
+	@InputMarker(uiOrder=1, name="Image", type=MarkerConstants.TYPE_IMAGE, description="Image to be converted.", optional=false)
+	JEXData imageData;
+
+	/////////// Define Parameters ///////////
+
+	@ParameterMarker(uiOrder=1, name="Direction", description="Convert TIFF planes to raw planes or back. Planes already in the requested format are left as they are.", ui=MarkerConstants.UI_DROPDOWN, choices={ "TIFF to raw", "Raw to TIFF" }, defaultChoice=0)
+	String direction;
+
+	@ParameterMarker(uiOrder=2, name="Plane Threads", description="Number of planes to convert" + PlaneExecutor.THREADS_DESCRIPTION, ui=MarkerConstants.UI_TEXTFIELD, defaultText="1")
+	int planeThreads;
+
+	/////////// Define Outputs ///////////
+
+	@OutputMarker(uiOrder=1, name="Converted Image", type=MarkerConstants.TYPE_IMAGE, flavor="", description="The converted image", enabled=true)
+	JEXData output;
+
+	@Override
+	public int getMaxThreads()
+	{
+		return 10;
+	}
+
+	@Override
+	public boolean run(JEXEntry optionalEntry)
+	{
+		// validate image
+		if(imageData == null || !imageData.getTypeName().getType().equals(JEXData.IMAGE))
+		{
+			return false;
+		}
+
+		// Convert each plane
+		TreeMap<DimensionMap,String> imageMap = ImageReader.readObjectToImagePathTable(imageData);
+		final boolean toRaw = TO_RAW.equals(direction);
+		PlaneExecutor executor = new PlaneExecutor(this, planeThreads);
+		TreeMap<DimensionMap,String> outputMap = executor.run(imageMap, new PlaneExecutor.PlaneTask(){
+			@Override
+			public String run(DimensionMap map, String path) throws Exception
+			{
+				if(!(new File(path)).exists())
+				{
+					return null;
+				}
+				if(toRaw == RawPlane.isRawPlane(path))
+				{
+					return FileTransfer.shareFile(new File(path));
+				}
+				return toRaw ? RawPlane.fromTiff(path) : RawPlane.toTiff(path);
+			}
+		});
+		if(outputMap == null || outputMap.size() == 0)
+		{
+			return false;
+		}
+
+		this.output = ImageWriter.makeImageStackFromPaths("temp", outputMap);
+
+		// Return status
+		return true;
+	}
+}
@@ -3,21 +3,17 @@ package plugins;
 import Database.DBObjects.JEXData;
 import Database.DBObjects.JEXEntry;
 import Database.DataReader.FileReader;
-import Database.SingleUserDatabase.JEXWriter;
 import function.plugin.mechanism.InputMarker;
 import function.plugin.mechanism.JEXPlugin;
 import function.plugin.mechanism.MarkerConstants;
 import function.plugin.mechanism.ParameterMarker;
 
 import java.io.File;
-import java.io.IOException;
 import java.util.TreeMap;
 import java.util.Vector;
 
 import org.scijava.plugin.Plugin;
 
-import jex.statics.JEXStatics;
-import logs.Logs;
 import miscellaneous.FileUtility;
 import tables.DimensionMap;
 
@@ -97,6 +93,12 @@ public class Example_ExportMultipleFiles extends JEXPlugin {
 	@ParameterMarker(uiOrder=2, name="File Extension", description="Extension to put on the file", ui=MarkerConstants.UI_DROPDOWN, choices={ "csv", "arff", "txt" }, defaultChoice=0)
 	String ext;
 	
+	@ParameterMarker(uiOrder=3, name="Transfer Method", description="Copy the files, or make hard links to them (no data is duplicated) when the folder is on the same drive as the database. Falls back to copying when links aren't possible. WARNING: a hard link is the same file as the one in the database, so editing an exported file also changes the database. Use Copy unless the exports will only be read.", ui=MarkerConstants.UI_DROPDOWN, choices={ "Copy", "Hard link when possible" }, defaultChoice=0)
+	String transferMethod;
+	
+	@ParameterMarker(uiOrder=4, name="Copy Threads", description="Number of files to copy at the same time", ui=MarkerConstants.UI_TEXTFIELD, defaultText="4")
+	int copyThreads;
+	
 	/////////// Define Outputs ///////////
 	// no output
 	
@@ -204,46 +206,26 @@ public class Example_ExportMultipleFiles extends JEXPlugin {
 		}
 		
 		File folder = new File(folderPath);
+		if(!folder.exists())
+		{
+			folder.mkdirs();
+		}
+		
 		// Run the function
-		int n = 1;
+		BulkFileCopier copier = new BulkFileCopier();
 		for (JEXData data : datas)
 		{
 			TreeMap<DimensionMap,String> filePaths = FileReader.readObjectToFilePathTable(data);
-			
-			if(!folder.exists())
-			{
-				folder.mkdirs();
-			}
-			
-			int count = 0;
-			int total = filePaths.size();
-			JEXStatics.statusBar.setProgressPercentage(0);
 			for (DimensionMap dim : filePaths.keySet())
 			{
-				String path = filePaths.get(dim);
-				File f = new File(path);
+				File f = new File(filePaths.get(dim));
 				String fileName = f.getName();
 				String newFilePath = folder.getAbsolutePath() + File.separator + data.name + " - " + FileUtility.getFileNameWithoutExtension(fileName) + "." + ext;
-				
-				try
-				{
-					JEXWriter.copy(f, new File(newFilePath));
-				}
-				catch (IOException e)
-				{
-					e.printStackTrace();
-				}
-				
-				Logs.log("File Object " + n + ": Finished processing " + count + " of " + total + ".", 1, this);
-				
+				copier.add(f, new File(newFilePath));
 			}
-			// Status bar
-			int percentage = (int) (100 * ((double) n / (double) datas.size()));
-			JEXStatics.statusBar.setProgressPercentage(percentage);
-			n = n + 1;
 		}
 		
 		// Return status
-		return true;
+		return copier.run(this, copyThreads, "Hard link when possible".equals(transferMethod));
 	}
 }
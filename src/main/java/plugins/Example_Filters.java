@@ -4,10 +4,10 @@ import ij.ImagePlus;
 import ij.plugin.filter.RankFilters;
 import ij.process.ImageProcessor;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.TreeMap;
 
-import jex.statics.JEXStatics;
-
 import org.scijava.plugin.Plugin;
 
 import tables.DimensionMap;
@@ -15,7 +15,6 @@ import Database.DBObjects.JEXData;
 import Database.DBObjects.JEXEntry;
 import Database.DataReader.ImageReader;
 import Database.DataWriter.ImageWriter;
-import Database.SingleUserDatabase.JEXWriter;
 import function.plugin.mechanism.InputMarker;
 import function.plugin.mechanism.JEXPlugin;
 import function.plugin.mechanism.MarkerConstants;
@@ -40,9 +39,11 @@ import function.plugin.mechanism.ParameterMarker;
 		visible=true,
 		description="Use a predefined image filter and specify the filter radius."
 		)
-public class Example_Filters extends JEXPlugin {
+public class Example_Filters extends JEXPlugin implements PlaneParallelSafe {
 	
 	public static String MEAN = "mean", MIN = "min", MAX = "max", MEDIAN = "median", VARIANCE = "variance";
+	
+	public static String ENGINE_RANKFILTERS = "RankFilters (circular kernel)", ENGINE_FAST = "Fast (square kernel)";
 
 	public Example_Filters()
 	{}
@@ -60,8 +61,44 @@ public class Example_Filters extends JEXPlugin {
 	@ParameterMarker(uiOrder=2, name="Radius", description="Radius of filter in pixels.", ui=MarkerConstants.UI_TEXTFIELD, defaultText="2.0")
 	double radius;
 	
-	@ParameterMarker(uiOrder=3, name="Output Bit-Depth", description="Bit-Depth of the output image", ui=MarkerConstants.UI_DROPDOWN, choices={ "8", "16", "32" }, defaultChoice=2)
-	int bitDepth;
+	@ParameterMarker(uiOrder=3, name="Filter Engine", description="RankFilters uses a circular kernel whose cost grows with the radius. Fast uses a (2*radius+1) square kernel whose cost doesn't depend on the radius (mean, min, max, and variance only; median always uses RankFilters).", ui=MarkerConstants.UI_DROPDOWN, choices={ "RankFilters (circular kernel)", "Fast (square kernel)" }, defaultChoice=0)
+	String engine;
+	
+	@ParameterMarker(uiOrder=4, name="Output Bit-Depth", description="Bit-Depth of the output image (auto picks the smallest depth that holds the filtered values of a sample of planes)", ui=MarkerConstants.UI_DROPDOWN, choices={ "8", "16", "32", "auto" }, defaultChoice=2)
+	String bitDepth;
+	
+	@ParameterMarker(uiOrder=5, name="Plane Threads", description="Number of planes to filter" + PlaneExecutor.THREADS_DESCRIPTION, ui=MarkerConstants.UI_TEXTFIELD, defaultText="1")
+	int planeThreads;
+	
+	@ParameterMarker(uiOrder=6, name="Prefetch Planes", description="Number of planes to read ahead and hold while waiting to be filtered or saved (0 turns off the read/filter/write pipeline)", ui=MarkerConstants.UI_TEXTFIELD, defaultText="0")
+	int prefetch;
+	
+	@ParameterMarker(uiOrder=7, name="Tile Threads", description="Split each plane into tiles and filter up to this many at once on the shared plane scheduler threads (0 filters whole planes). Useful for very large planes; results are identical either way.", ui=MarkerConstants.UI_TEXTFIELD, defaultText="0")
+	int tileThreads;
+	
+	@ParameterMarker(uiOrder=8, name="Metrics Folder", description=PluginMetrics.FOLDER_DESCRIPTION, ui=MarkerConstants.UI_FILECHOOSER, defaultText="")
+	String metricsFolder;
+	
+	@ParameterMarker(uiOrder=9, name="Cache Folder", description=ResultCache.FOLDER_DESCRIPTION, ui=MarkerConstants.UI_FILECHOOSER, defaultText="")
+	String cacheFolder;
+	
+	@ParameterMarker(uiOrder=10, name="Cache Size (GB)", description=ResultCache.SIZE_DESCRIPTION, ui=MarkerConstants.UI_TEXTFIELD, defaultText="10.0")
+	double cacheSize;
+	
+	@ParameterMarker(uiOrder=11, name="Output Format", description=RawPlane.FORMAT_DESCRIPTION, ui=MarkerConstants.UI_DROPDOWN, choices={ "TIFF", "Raw (memory-mapped)" }, defaultChoice=0)
+	String outputFormat;
+	
+	@ParameterMarker(uiOrder=12, name="Checkpoint Folder", description="Folder in which to record each plane as it finishes. If the run is canceled or JEX stops, running again with the same image and parameters skips the planes already done, as long as JEX hasn't cleaned up their temp files. Leave blank to turn off.", ui=MarkerConstants.UI_FILECHOOSER, defaultText="")
+	String checkpointFolder;
+	
+	@ParameterMarker(uiOrder=13, name="Output Compression", description=CompressedTiffWriter.DESCRIPTION, ui=MarkerConstants.UI_DROPDOWN, choices={ "None", "LZW", "Deflate", "Deflate (fast)" }, defaultChoice=0)
+	String compression;
+	
+	@ParameterMarker(uiOrder=14, name="Preview", description="Only filter the first, middle, and last planes of each dimension at a reduced size (with the radius scaled to match) to quickly try out parameters. Caching and checkpoints are not used.", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=false)
+	boolean preview;
+	
+	@ParameterMarker(uiOrder=15, name="Preview Scale", description=PreviewSampler.SCALE_DESCRIPTION, ui=MarkerConstants.UI_TEXTFIELD, defaultText="0.25")
+	double previewScale;
 	
 	/////////// Define Outputs ///////////
 	
@@ -91,46 +128,82 @@ public class Example_Filters extends JEXPlugin {
 		
 		// Run the function
 		TreeMap<DimensionMap,String> imageMap = ImageReader.readObjectToImagePathTable(imageData);
-		TreeMap<DimensionMap,String> outputImageMap = new TreeMap<DimensionMap,String>();
-		int count = 0, percentage = 0;
-		for (DimensionMap map : imageMap.keySet())
+		final double scale = preview ? previewScale : 1;
+		if(preview)
 		{
-			if(this.isCanceled())
+			// A few planes at a reduced size
+			TreeMap<DimensionMap,String> previewMap = PreviewSampler.sample(imageMap, PreviewSampler.MAX_PLANES);
+			PreviewSampler.log(imageMap, previewMap, scale, this);
+			imageMap = previewMap;
+		}
+		final double filterRadius = PreviewSampler.scaleRadius(radius, scale);
+		final boolean raw = RawPlane.FORMAT_RAW.equals(outputFormat);
+		final PixelBufferPool pool = PixelBufferPool.getShared();
+		final PluginMetrics metrics = new PluginMetrics("Example_Filters");
+		final BitDepthChooser chooser = this.chooseBitDepth(imageMap, pool, scale, filterRadius);
+		final int depth = (chooser == null) ? BitDepthChooser.parse(bitDepth) : chooser.getBitDepth();
+		PlanePipeline.Stages<ImagePlus,ImageProcessor> stages = new PlanePipeline.Stages<ImagePlus,ImageProcessor>(){
+			@Override
+			public ImagePlus read(DimensionMap map, String path) throws IOException
 			{
-				return false;
+				if(!(new File(path)).exists())
+				{
+					return null;
+				}
+				long t = metrics.start();
+				ImagePlus im = PreviewSampler.downsample(RawPlane.openImage(path), scale);
+				metrics.read(map, path, t);
+				return im;
 			}
-			ImagePlus im = new ImagePlus(imageMap.get(map));
-			ImageProcessor ip = im.getProcessor().convertToFloat();
-			
-			// //// Begin Actual Function
-			RankFilters rF = new RankFilters();
-			rF.setup(method, im);
-			rF.makeKernel(radius);
-			rF.run(ip);
-			// //// End Actual Function
 			
-			ImageProcessor toSave = ip;
-			if(bitDepth == 8)
+			@Override
+			public ImageProcessor process(DimensionMap map, ImagePlus im)
 			{
-				toSave = ip.convertToByte(false);
+				long t = metrics.start();
+				ImageProcessor ret;
+				if(chooser == null)
+				{
+					ret = filterImage(im, method, filterRadius, engine, depth, tileThreads, pool);
+				}
+				else
+				{
+					// Check the pixels of every plane against the depth chosen from the sample
+					ret = chooser.convert(filterImage(im, method, filterRadius, engine, 32, tileThreads, pool), pool);
+				}
+				im.flush();
+				metrics.compute(map, t);
+				return ret;
 			}
-			else if(bitDepth == 16)
-			{
-				toSave = ip.convertToShort(false);
-			}
-			
-			String path = JEXWriter.saveImage(toSave);
 			
-			if(path != null)
+			@Override
+			public String write(DimensionMap map, ImageProcessor toSave) throws IOException
 			{
-				outputImageMap.put(map, path);
+				long t = metrics.start();
+				String path = RawPlane.saveImage(toSave, raw, compression);
+				pool.release(toSave);
+				metrics.write(map, path, t);
+				return path;
 			}
-			
-			count = count + 1;
-			percentage = (int) (100 * ((double) (count) / ((double) imageMap.size())));
-			JEXStatics.statusBar.setProgressPercentage(percentage);
+		};
+		
+		PlaneJob<ImagePlus,ImageProcessor> job = new PlaneJob<ImagePlus,ImageProcessor>(this, stages);
+		job.setThreads(planeThreads, prefetch);
+		job.setMetrics(metrics, metricsFolder);
+		job.setOutputExtension(raw ? RawPlane.EXTENSION : "tif");
+		if(!preview)
+		{
+			// The depth actually used, so an auto run matches a run with that depth and not other auto runs
+			String fingerprint = ParameterFingerprint.of(this, "method", "radius", "engine", "outputFormat", "compression") + ";bitDepth=" + depth;
+			job.setCache(cacheFolder, cacheSize, fingerprint);
+			job.setCheckpoint(checkpointFolder, fingerprint);
+		}
+		TreeMap<DimensionMap,String> outputImageMap = job.run(imageMap);
+		pool.log(this);
+		if(chooser != null)
+		{
+			chooser.log(this);
 		}
-		if(outputImageMap.size() == 0)
+		if(outputImageMap == null || outputImageMap.size() == 0)
 		{
 			return false;
 		}
@@ -142,4 +215,101 @@ public class Example_Filters extends JEXPlugin {
 		return true;
 	}
 	
+	/**
+	 * Choose the output bit depth from a sample of filtered planes if the Output Bit-Depth is auto.
+	 *
+	 * @return null if the bit depth was given
+	 */
+	private BitDepthChooser chooseBitDepth(TreeMap<DimensionMap,String> imageMap, final PixelBufferPool pool, final double scale, final double filterRadius)
+	{
+		if(!BitDepthChooser.AUTO.equals(bitDepth))
+		{
+			return null;
+		}
+		return BitDepthChooser.sample(imageMap, BitDepthChooser.SAMPLE_PLANES, new BitDepthChooser.PlaneFunction(){
+			@Override
+			public ImageProcessor apply(ImagePlus im)
+			{
+				return filterImage(PreviewSampler.downsample(im, scale), method, filterRadius, engine, 32, tileThreads, pool);
+			}
+		}, pool);
+	}
+	
+	/**
+	 * Filter the image with the chosen engine and convert the result to bitDepth.
+	 */
+	public static ImageProcessor filterImage(ImagePlus im, String method, double radius, String engine, int bitDepth)
+	{
+		ImageProcessor ip = im.getProcessor().convertToFloat();
+		filterFloat(ip, im, method, radius, engine);
+		return convertToBitDepth(ip, bitDepth);
+	}
+	
+	/**
+	 * Same as filterImage but splits the plane into tiles, up to tileThreads of which are filtered at once on the PlaneScheduler pool, when tileThreads > 0.
+	 */
+	public static ImageProcessor filterImage(ImagePlus im, String method, double radius, String engine, int bitDepth, int tileThreads)
+	{
+		if(tileThreads > 0)
+		{
+			return TiledFilter.filter(im.getProcessor(), method, radius, engine, bitDepth, tileThreads);
+		}
+		return filterImage(im, method, radius, engine, bitDepth);
+	}
+	
+	/**
+	 * Same as filterImage but the working and output pixel arrays are borrowed from pool. Release the result to the
+	 * pool once it has been saved.
+	 */
+	public static ImageProcessor filterImage(ImagePlus im, String method, double radius, String engine, int bitDepth, int tileThreads, PixelBufferPool pool)
+	{
+		if(tileThreads > 0)
+		{
+			return TiledFilter.filter(im.getProcessor(), method, radius, engine, bitDepth, tileThreads);
+		}
+		ImageProcessor ip = pool.toFloat(im.getProcessor());
+		filterFloat(ip, im, method, radius, engine);
+		ImageProcessor ret = pool.toBitDepth(ip, bitDepth);
+		if(ret != ip)
+		{
+			pool.release(ip);
+		}
+		return ret;
+	}
+	
+	/**
+	 * Filter a float processor in place. im is only used to set up RankFilters.
+	 */
+	public static void filterFloat(ImageProcessor ip, ImagePlus im, String method, double radius, String engine)
+	{
+		if(ENGINE_FAST.equals(engine) && FastRankFilters.supports(method))
+		{
+			FastRankFilters.filter((float[]) ip.getPixels(), ip.getWidth(), ip.getHeight(), method, radius);
+		}
+		else
+		{
+			RankFilters rF = new RankFilters();
+			rF.setup(method, im);
+			rF.makeKernel(radius);
+			rF.run(ip);
+		}
+	}
+	
+	/**
+	 * Convert a float processor to the output bit depth (no scaling).
+	 */
+	public static ImageProcessor convertToBitDepth(ImageProcessor ip, int bitDepth)
+	{
+		ImageProcessor toSave = ip;
+		if(bitDepth == 8)
+		{
+			toSave = ip.convertToByte(false);
+		}
+		else if(bitDepth == 16)
+		{
+			toSave = ip.convertToShort(false);
+		}
+		return toSave;
+	}
+	
 }
@@ -0,0 +1,216 @@
+package plugins;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.TreeMap;
+import java.util.Vector;
+
+import jex.utilities.FunctionUtility;
+
+import org.scijava.plugin.Plugin;
+
+import tables.DimensionMap;
+import Database.DBObjects.JEXData;
+import Database.DBObjects.JEXEntry;
+import Database.DataReader.ImageReader;
+import Database.DataWriter.ImageWriter;
+import function.plugin.mechanism.InputMarker;
+import function.plugin.mechanism.JEXPlugin;
+import function.plugin.mechanism.MarkerConstants;
+import function.plugin.mechanism.OutputMarker;
+import function.plugin.mechanism.ParameterMarker;
+
+/**
+ * Runs the Filters, Adjust Image, and Split Image examples as one plugin. Each plane is read once, filtered, adjusted,
+ * and converted in memory, and only the final result is written, instead of every step writing its planes to the
+ * database and the next step reading them back.
+ *
+ * The result matches running Example_Filters with a 32-bit output, then Example_AdjustImage, then Example_SplitImage.
+ *
+ */
+
+@Plugin(
+		type = JEXPlugin.class,
+		name="Example - Filter, Adjust, and Split",
+		menuPath="Template Functions",
+		visible=true,
+		description="Filter, adjust intensities, and split an image in one step, writing only the final planes."
+		)
+public class Example_FusedChain extends JEXPlugin implements PlaneParallelSafe {
+
+	public static String NONE = "none";
+
+	public Example_FusedChain()
+	{}
+
+	/////////// Define Inputs ///////////
+
+	@InputMarker(uiOrder=1, name="Image", type=MarkerConstants.TYPE_IMAGE, description="Image to be processed.", optional=false)
+	JEXData imageData;
+
+	/////////// Define Parameters ///////////
+
+	@ParameterMarker(uiOrder=1, name="Filter Type", description="Type of filter to apply first ('none' skips filtering).", ui=MarkerConstants.UI_DROPDOWN, choices={ "none", "mean", "min", "max", "median", "variance" }, defaultChoice=4)
+	String method;
+
+	@ParameterMarker(uiOrder=2, name="Radius", description="Radius of filter in pixels.", ui=MarkerConstants.UI_TEXTFIELD, defaultText="2.0")
+	double radius;
+
+	@ParameterMarker(uiOrder=3, name="Filter Engine", description="RankFilters uses a circular kernel, Fast a (2*radius+1) square kernel (mean, min, max, and variance only).", ui=MarkerConstants.UI_DROPDOWN, choices={ "RankFilters (circular kernel)", "Fast (square kernel)" }, defaultChoice=0)
+	String engine;
+
+	@ParameterMarker(uiOrder=4, name="Adjust Intensities?", description="Map old min and max to new min and max after filtering.", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=true)
+	boolean adjust;
+
+	@ParameterMarker(uiOrder=5, name="Old Min", description="Image Intensity Value", ui=MarkerConstants.UI_TEXTFIELD, defaultText="0.0")
+	double oldMin;
+
+	@ParameterMarker(uiOrder=6, name="Old Max", description="Image Intensity Value", ui=MarkerConstants.UI_TEXTFIELD, defaultText="4095.0")
+	double oldMax;
+
+	@ParameterMarker(uiOrder=7, name="New Min", description="Image Intensity Value", ui=MarkerConstants.UI_TEXTFIELD, defaultText="0.0")
+	double newMin;
+
+	@ParameterMarker(uiOrder=8, name="New Max", description="Image Intensity Value", ui=MarkerConstants.UI_TEXTFIELD, defaultText="65535.0")
+	double newMax;
+
+	@ParameterMarker(uiOrder=9, name="Gamma", description="0.1-5.0, value of 1 results in no change", ui=MarkerConstants.UI_TEXTFIELD, defaultText="1.0")
+	double gamma;
+
+	@ParameterMarker(uiOrder=10, name="Output Bit Depth", description="Depth of the outputted image", ui=MarkerConstants.UI_DROPDOWN, choices={ "8", "16", "32" }, defaultChoice=1)
+	int bitDepth;
+
+	@ParameterMarker(uiOrder=11, name="Dim to Split", description="Dimension(s) to split the result on, comma separated (leave blank to keep a single image)", ui=MarkerConstants.UI_TEXTFIELD, defaultText="")
+	String dim;
+
+	@ParameterMarker(uiOrder=12, name="Keep Dim?", description="Keep the split dimension(s) in the resultant images with a size of one", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=false)
+	boolean keep;
+
+	@ParameterMarker(uiOrder=13, name="Plane Threads", description="Number of planes to process" + PlaneExecutor.THREADS_DESCRIPTION, ui=MarkerConstants.UI_TEXTFIELD, defaultText="1")
+	int planeThreads;
+
+	@ParameterMarker(uiOrder=14, name="Prefetch Planes", description="Number of planes to read ahead and hold while waiting to be processed or saved (0 turns off the read/process/write pipeline)", ui=MarkerConstants.UI_TEXTFIELD, defaultText="0")
+	int prefetch;
+
+	@ParameterMarker(uiOrder=15, name="Metrics Folder", description=PluginMetrics.FOLDER_DESCRIPTION, ui=MarkerConstants.UI_FILECHOOSER, defaultText="")
+	String metricsFolder;
+
+	@ParameterMarker(uiOrder=16, name="Output Format", description="Raw planes are uncompressed and memory-mapped (see 'Example - Convert Raw Planes').", ui=MarkerConstants.UI_DROPDOWN, choices={ "TIFF", "Raw (memory-mapped)" }, defaultChoice=0)
+	String outputFormat;
+
+	/////////// Define Outputs ///////////
+
+	@OutputMarker(uiOrder=1, name="Processed Image", type=MarkerConstants.TYPE_IMAGE, flavor="", description="The resultant image(s), one per value of the split dimension(s)", enabled=true)
+	Vector<JEXData> output = new Vector<JEXData>();
+
+	@Override
+	public int getMaxThreads()
+	{
+		return 10;
+	}
+
+	@Override
+	public boolean run(JEXEntry optionalEntry)
+	{
+		// validate image
+		if(imageData == null || !imageData.getTypeName().getType().equals(JEXData.IMAGE))
+		{
+			return false;
+		}
+
+		// Filter, adjust, and convert each plane in memory
+		TreeMap<DimensionMap,String> imageMap = ImageReader.readObjectToImagePathTable(imageData);
+		final boolean raw = RawPlane.FORMAT_RAW.equals(outputFormat);
+		final PixelBufferPool pool = PixelBufferPool.getShared();
+		final PluginMetrics metrics = new PluginMetrics("Example_FusedChain");
+		PlanePipeline.Stages<ImagePlus,ImageProcessor> stages = new PlanePipeline.Stages<ImagePlus,ImageProcessor>(){
+			@Override
+			public ImagePlus read(DimensionMap map, String path) throws IOException
+			{
+				if(!(new File(path)).exists())
+				{
+					return null;
+				}
+				long t = metrics.start();
+				ImagePlus im = RawPlane.openImage(path);
+				metrics.read(map, path, t);
+				return im;
+			}
+
+			@Override
+			public ImageProcessor process(DimensionMap map, ImagePlus im)
+			{
+				long t = metrics.start();
+				ImageProcessor ret = processPlane(im, pool);
+				im.flush();
+				metrics.compute(map, t);
+				return ret;
+			}
+
+			@Override
+			public String write(DimensionMap map, ImageProcessor toSave) throws IOException
+			{
+				long t = metrics.start();
+				String path = RawPlane.saveImage(toSave, raw);
+				pool.release(toSave);
+				metrics.write(map, path, t);
+				return path;
+			}
+		};
+
+		PlaneJob<ImagePlus,ImageProcessor> job = new PlaneJob<ImagePlus,ImageProcessor>(this, stages);
+		job.setThreads(planeThreads, prefetch);
+		job.setMetrics(metrics, metricsFolder);
+		TreeMap<DimensionMap,String> outputMap = job.run(imageMap);
+		pool.log(this);
+		if(outputMap == null || outputMap.size() == 0)
+		{
+			return false;
+		}
+
+		// Split the written planes into one object per value of the split dims (no further copies needed)
+		String[] dims = Example_SplitImage.parseDims(dim);
+		LinkedHashMap<DimensionMap,PlaneIndex> groups = PlaneIndex.of(imageData.getDimTable(), outputMap, this).groupBy(dims);
+		for (DimensionMap groupKey : groups.keySet())
+		{
+			output.add(ImageWriter.makeImageStackFromPaths(Example_SplitImage.getSplitName(imageData.name, dims, groupKey), Example_SplitImage.getSplitTable(groups.get(groupKey), dims, keep)));
+		}
+
+		// Return status
+		return true;
+	}
+
+	/**
+	 * Filter, adjust, and convert one plane, keeping the intermediate result as floats. The result's pixels are
+	 * borrowed from pool.
+	 */
+	public ImageProcessor processPlane(ImagePlus im, PixelBufferPool pool)
+	{
+		FloatProcessor fp = pool.toFloat(im.getProcessor());
+		if(!NONE.equals(method))
+		{
+			Example_Filters.filterFloat(fp, im, method, radius, engine);
+		}
+		if(adjust)
+		{
+			FunctionUtility.imAdjust(fp, oldMin, oldMax, newMin, newMax, gamma);
+			ImageProcessor ret = FunctionUtility.makeImageToSave(fp, "false", bitDepth).getProcessor();
+			if(ret.getPixels() != fp.getPixels())
+			{
+				pool.release(fp);
+			}
+			return ret;
+		}
+		ImageProcessor ret = pool.toBitDepth(fp, bitDepth);
+		if(ret != fp)
+		{
+			pool.release(fp);
+		}
+		return ret;
+	}
+}
@@ -0,0 +1,96 @@
+package plugins;
+
+import java.io.File;
+import java.util.TreeMap;
+
+import org.scijava.plugin.Plugin;
+
+import tables.DimensionMap;
+import Database.DBObjects.JEXData;
+import Database.DBObjects.JEXEntry;
+import Database.DataReader.ImageReader;
+import Database.DataWriter.ImageWriter;
+import Database.SingleUserDatabase.JEXWriter;
+import function.plugin.mechanism.InputMarker;
+import function.plugin.mechanism.JEXPlugin;
+import function.plugin.mechanism.MarkerConstants;
+import function.plugin.mechanism.OutputMarker;
+import function.plugin.mechanism.ParameterMarker;
+
+/**
+ * Computes every plane of a lazy image (see LazyPlane) and saves the results as a regular image that no longer
+ * depends on its source. Planes that are already regular images are shared as they are.
+ *
+ */
+
+@Plugin(
+		type = JEXPlugin.class,
+		name="Example - Materialize Lazy Image",
+		menuPath="Template Functions",
+		visible=true,
+		description="Compute and save every plane of a lazy image (e.g., the Lazy Output of Example - Adjust Image Intensities)."
+		)
+public class Example_MaterializeLazyImage extends JEXPlugin implements PlaneParallelSafe {
+
+	public Example_MaterializeLazyImage()
+	{}
+
+	/////////// Define Inputs ///////////
+
+	@InputMarker(uiOrder=1, name="Image", type=MarkerConstants.TYPE_IMAGE, description="Lazy image to be computed.", optional=false)
+	JEXData imageData;
+
+	/////////// Define Parameters ///////////
+
+	@ParameterMarker(uiOrder=1, name="Plane Threads", description="Number of planes to compute" + PlaneExecutor.THREADS_DESCRIPTION, ui=MarkerConstants.UI_TEXTFIELD, defaultText="1")
+	int planeThreads;
+
+	/////////// Define Outputs ///////////
+
+	@OutputMarker(uiOrder=1, name="Materialized Image", type=MarkerConstants.TYPE_IMAGE, flavor="", description="The computed image", enabled=true)
+	JEXData output;
+
+	@Override
+	public int getMaxThreads()
+	{
+		return 10;
+	}
+
+	@Override
+	public boolean run(JEXEntry optionalEntry)
+	{
+		// validate image
+		if(imageData == null || !imageData.getTypeName().getType().equals(JEXData.IMAGE))
+		{
+			return false;
+		}
+
+		// Compute (or reuse the already computed) pixels of each plane
+		TreeMap<DimensionMap,String> imageMap = ImageReader.readObjectToImagePathTable(imageData);
+		PlaneExecutor executor = new PlaneExecutor(this, planeThreads);
+		TreeMap<DimensionMap,String> outputMap = executor.run(imageMap, new PlaneExecutor.PlaneTask(){
+			@Override
+			public String run(DimensionMap map, String path) throws Exception
+			{
+				if(!(new File(path)).exists())
+				{
+					return null;
+				}
+				if(LazyPlane.isLazy(path))
+				{
+					return JEXWriter.saveFile(new File(LazyPlane.resolve(path)));
+				}
+				return FileTransfer.shareFile(new File(path));
+			}
+		});
+		if(outputMap == null || outputMap.size() == 0)
+		{
+			return false;
+		}
+
+		this.output = ImageWriter.makeImageStackFromPaths("temp", outputMap);
+
+		// Return status
+		return true;
+	}
+}
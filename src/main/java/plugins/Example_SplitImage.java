@@ -1,18 +1,21 @@
 package plugins;
 
 import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
 import java.util.TreeMap;
 import java.util.Vector;
-
-import jex.statics.JEXStatics;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.scijava.plugin.Plugin;
 
-import tables.DimTable;
 import tables.DimensionMap;
 import Database.DBObjects.JEXData;
 import Database.DBObjects.JEXEntry;
-import Database.DataReader.ImageReader;
 import Database.DataWriter.ImageWriter;
 import Database.SingleUserDatabase.JEXWriter;
 import function.plugin.mechanism.InputMarker;
@@ -65,7 +68,7 @@ public class Example_SplitImage extends JEXPlugin {
 	
 	/////////// Define Parameters ///////////
 	
-	@ParameterMarker(uiOrder=1, name="Dim to Split", description="Name of the dimension to split", ui=MarkerConstants.UI_TEXTFIELD, defaultText="Color")
+	@ParameterMarker(uiOrder=1, name="Dim to Split", description="Name of the dimension to split, or a comma separated list of names to split on all of them at once (e.g., 'Color,Location')", ui=MarkerConstants.UI_TEXTFIELD, defaultText="Color")
 	String dim;
 	
 	@ParameterMarker(uiOrder=2, name="Keep Dim?", description="Keep the dimension name in the resultant images " +
@@ -73,6 +76,12 @@ public class Example_SplitImage extends JEXPlugin {
 			"have a size of one, and a value matching the original value)", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=false)
 	Boolean keep;
 	
+	@ParameterMarker(uiOrder=3, name="Split Mode", description="Copy every plane into the new objects, or share the original files through hard links so only the database entries are new (falls back to copying when the drive can't share files)", ui=MarkerConstants.UI_DROPDOWN, choices={ "Copy files", "Share original files" }, defaultChoice=0)
+	String splitMode;
+	
+	@ParameterMarker(uiOrder=4, name="Output Threads", description="Number of split objects to build at the same time", ui=MarkerConstants.UI_TEXTFIELD, defaultText="4")
+	int outputThreads;
+	
 	/////////// Define Outputs ///////////
 	
 	@OutputMarker(uiOrder=1, name="Split Image", type=MarkerConstants.TYPE_IMAGE, flavor="", description="The resultant split image stack", enabled=true)
@@ -97,30 +106,71 @@ public class Example_SplitImage extends JEXPlugin {
 		}
 		
 		// Run the function
-		TreeMap<DimensionMap,String> imageMap = ImageReader.readObjectToImagePathTable(imageData);
-		int count = 0, percentage = 0;
-		for (DimTable subTable : imageData.getDimTable().getSubTableIterator(dim))
+		PlaneIndex index = PlaneIndex.read(imageData, this);
+		final String[] dims = parseDims(dim);
+		if(dims.length == 0)
+		{
+			return false;
+		}
+		final boolean share = "Share original files".equals(splitMode);
+		final ProgressReporter progress = new ProgressReporter(this, index.size());
+		
+		// One pass over the planes sorts them into every combination of the split dims, in DimTable order
+		LinkedHashMap<DimensionMap,PlaneIndex> groups = index.groupBy(dims);
+		
+		// Build the output objects concurrently but keep them in order
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, outputThreads));
+		Vector<Future<JEXData>> futures = new Vector<Future<JEXData>>();
+		try
 		{
-			TreeMap<DimensionMap,String> splitImageMap = new TreeMap<DimensionMap,String>();
-			for (DimensionMap map : subTable.getMapIterator())
+			for (final DimensionMap groupKey : groups.keySet())
 			{
-				String copiedFile = JEXWriter.saveFile(new File(imageMap.get(map)));
-				if(keep)
-				{
-					splitImageMap.put(map.copy(), copiedFile);
-				}
-				else
+				final PlaneIndex group = groups.get(groupKey);
+				final String name = getSplitName(imageData.name, dims, groupKey);
+				futures.add(pool.submit(new Callable<JEXData>(){
+					@Override
+					public JEXData call()
+					{
+						TreeMap<DimensionMap,String> splitImageMap = new TreeMap<DimensionMap,String>();
+						for (Entry<DimensionMap,String> e : group)
+						{
+							if(isCanceled())
+							{
+								return null;
+							}
+							File f = new File(e.getValue());
+							String copiedFile = share ? FileTransfer.shareFile(f) : JEXWriter.saveFile(f);
+							splitImageMap.put(getSplitMap(e.getKey(), dims, keep), copiedFile);
+							progress.planeFinished();
+						}
+						return ImageWriter.makeImageStackFromPaths(name, splitImageMap);
+					}
+				}));
+			}
+			for (Future<JEXData> f : futures)
+			{
+				JEXData data = f.get();
+				if(data == null)
 				{
-					DimensionMap newMap = map.copy();
-					newMap.remove(dim);
-					splitImageMap.put(newMap.copy(), copiedFile);
+					return false;
 				}
-				count = count + 1;
-				percentage = (int) (100 * ((double) (count) / ((double) imageMap.size())));
-				JEXStatics.statusBar.setProgressPercentage(percentage);
+				output.add(data);
 			}
-			output.add(ImageWriter.makeImageStackFromPaths(imageData.name + " " + dim + " " + subTable.getDimWithName(dim).min(), splitImageMap));
-			
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		catch (ExecutionException e)
+		{
+			e.printStackTrace();
+			return false;
+		}
+		finally
+		{
+			pool.shutdownNow();
+			progress.finish();
 		}
 		if(output.size() == 0)
 		{
@@ -130,4 +180,65 @@ public class Example_SplitImage extends JEXPlugin {
 		// Return status
 		return true;
 	}
+	
+	/**
+	 * Split a comma separated list of dimension names.
+	 */
+	public static String[] parseDims(String dims)
+	{
+		Vector<String> ret = new Vector<String>();
+		for (String d : dims.split(","))
+		{
+			if(!d.trim().equals(""))
+			{
+				ret.add(d.trim());
+			}
+		}
+		return ret.toArray(new String[0]);
+	}
+	
+	/**
+	 * The planes of each group of index.groupBy(dims) as a table for ImageWriter, without the split dims unless keep
+	 * is true.
+	 */
+	public static TreeMap<DimensionMap,String> getSplitTable(PlaneIndex group, String[] dims, boolean keep)
+	{
+		TreeMap<DimensionMap,String> ret = new TreeMap<DimensionMap,String>();
+		for (Entry<DimensionMap,String> e : group)
+		{
+			ret.put(getSplitMap(e.getKey(), dims, keep), e.getValue());
+		}
+		return ret;
+	}
+	
+	/**
+	 * map without the split dims unless keep is true (map itself is changed, PlaneIndex makes a new one per plane).
+	 */
+	public static DimensionMap getSplitMap(DimensionMap map, String[] dims, boolean keep)
+	{
+		if(!keep)
+		{
+			for (String d : dims)
+			{
+				map.remove(d);
+			}
+		}
+		return map;
+	}
+	
+	/**
+	 * Name of a split object, e.g. "Image Color 1" or "Image Color 1 Location 2".
+	 */
+	public static String getSplitName(String baseName, String[] dims, DimensionMap groupKey)
+	{
+		String name = baseName;
+		for (String d : dims)
+		{
+			if(groupKey.get(d) != null)
+			{
+				name = name + " " + d + " " + groupKey.get(d);
+			}
+		}
+		return name;
+	}
 }
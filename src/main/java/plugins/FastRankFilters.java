@@ -0,0 +1,358 @@
+package plugins;
+
+import java.util.Arrays;
+
+/**
+ * Square kernel mean, variance, min, and max filters whose cost per pixel doesn't depend on the radius.
+ *
+ * Mean and variance use running sums along each row followed by running sums down each column (the separable form of
+ * an integral image). The column sums are recomputed from scratch every getRowBlock(k) rows, counted from the top of
+ * the full image, which keeps rounding error from building up and makes the result for a row independent of where a
+ * tile containing it starts. Min and max use the van Herk / Gil-Werman algorithm along rows and then columns, which
+ * needs about three comparisons per pixel per direction for any kernel size.
+ *
+ * Edges are handled like RankFilters by repeating the nearest edge pixel. All methods work directly on float arrays
+ * stored row by row.
+ *
+ */
+public class FastRankFilters {
+
+	public static final int MEAN = 0, MIN = 1, MAX = 2, VARIANCE = 3;
+
+	/**
+	 * Returns the filter type for one of the Example_Filters method names or -1 if it isn't supported (e.g., median).
+	 */
+	public static int getType(String method)
+	{
+		if(Example_Filters.MEAN.equals(method))
+		{
+			return MEAN;
+		}
+		if(Example_Filters.MIN.equals(method))
+		{
+			return MIN;
+		}
+		if(Example_Filters.MAX.equals(method))
+		{
+			return MAX;
+		}
+		if(Example_Filters.VARIANCE.equals(method))
+		{
+			return VARIANCE;
+		}
+		return -1;
+	}
+
+	public static boolean supports(String method)
+	{
+		return getType(method) >= 0;
+	}
+
+	/**
+	 * Half width of the square kernel used for a given radius (the kernel is 2k+1 pixels on a side).
+	 */
+	public static int getHalfWidth(double radius)
+	{
+		return Math.max(1, (int) Math.round(radius));
+	}
+
+	/**
+	 * Rows between full recomputations of the column sums. Always a multiple of 64 so tiles can line up with it.
+	 */
+	public static int getRowBlock(int k)
+	{
+		int block = Math.max(64, 2 * (2 * k + 1));
+		return 64 * ((block + 63) / 64);
+	}
+
+	/**
+	 * Filter a whole image in place.
+	 */
+	public static void filter(float[] pixels, int width, int height, String method, double radius)
+	{
+		int k = getHalfWidth(radius);
+		float[] out = new float[pixels.length];
+		filter(pixels, width, height, 0, height, getType(method), k, 0, height, out);
+		System.arraycopy(out, 0, pixels, 0, pixels.length);
+	}
+
+	/**
+	 * Filter part of an image.
+	 *
+	 * @param in rows of the image starting at image row rowOffset, width pixels each
+	 * @param rows number of rows held in 'in'
+	 * @param rowOffset image row of the first row in 'in'
+	 * @param fullHeight height of the whole image (used for edge handling)
+	 * @param type MEAN, MIN, MAX, or VARIANCE
+	 * @param k kernel half width
+	 * @param outStart first row of 'in' to produce (relative to 'in'); must be 0 or line up with getRowBlock(k) in image coordinates for tiled results to match the whole image
+	 * @param outEnd row of 'in' after the last row to produce
+	 * @param out (outEnd - outStart) * width results
+	 */
+	public static void filter(float[] in, int width, int rows, int rowOffset, int fullHeight, int type, int k, int outStart, int outEnd, float[] out)
+	{
+		// Every image row within k of the requested rows (after edge clamping) must be present in 'in'
+		int first = Math.max(0, rowOffset + outStart - k) - rowOffset;
+		int last = Math.min(fullHeight - 1, rowOffset + outEnd - 1 + k) - rowOffset;
+		if(first < 0 || last >= rows)
+		{
+			throw new IllegalArgumentException("Input rows don't cover the kernel for the requested output rows.");
+		}
+		if(type == MEAN || type == VARIANCE)
+		{
+			sumFilter(in, width, rowOffset, fullHeight, k, type == VARIANCE, outStart, outEnd, out);
+		}
+		else if(type == MIN || type == MAX)
+		{
+			extremeFilter(in, width, rowOffset, fullHeight, k, type == MAX, outStart, outEnd, out);
+		}
+		else
+		{
+			throw new IllegalArgumentException("Unsupported filter type " + type);
+		}
+	}
+
+	private static int clamp(int i, int max)
+	{
+		return i < 0 ? 0 : (i > max ? max : i);
+	}
+
+	// ----------------------------------------------------
+	// ---------------- MEAN AND VARIANCE -----------------
+	// ----------------------------------------------------
+
+	private static void sumFilter(float[] in, int width, int rowOffset, int fullHeight, int k, boolean variance, int outStart, int outEnd, float[] out)
+	{
+		int block = getRowBlock(k);
+		int maxRow = fullHeight - 1;
+		double n = (double) (2 * k + 1) * (double) (2 * k + 1);
+		double[] colSum = new double[width];
+		double[] colSum2 = variance ? new double[width] : null;
+		double[] hSum = new double[width];
+		double[] hSum2 = variance ? new double[width] : null;
+
+		for (int y = outStart; y < outEnd; y++)
+		{
+			int imageRow = rowOffset + y;
+			if(y == outStart || imageRow % block == 0)
+			{
+				// Start the column sums over
+				Arrays.fill(colSum, 0);
+				if(variance)
+				{
+					Arrays.fill(colSum2, 0);
+				}
+				for (int j = -k; j <= k; j++)
+				{
+					rowSums(in, width, clamp(imageRow + j, maxRow) - rowOffset, k, hSum, hSum2);
+					add(colSum, hSum, 1);
+					if(variance)
+					{
+						add(colSum2, hSum2, 1);
+					}
+				}
+			}
+			else
+			{
+				// Slide the column sums down one row
+				rowSums(in, width, clamp(imageRow + k, maxRow) - rowOffset, k, hSum, hSum2);
+				add(colSum, hSum, 1);
+				if(variance)
+				{
+					add(colSum2, hSum2, 1);
+				}
+				rowSums(in, width, clamp(imageRow - k - 1, maxRow) - rowOffset, k, hSum, hSum2);
+				add(colSum, hSum, -1);
+				if(variance)
+				{
+					add(colSum2, hSum2, -1);
+				}
+			}
+
+			int o = (y - outStart) * width;
+			if(variance)
+			{
+				for (int x = 0; x < width; x++)
+				{
+					double mean = colSum[x] / n;
+					double value = colSum2[x] / n - mean * mean;
+					out[o + x] = (float) (value < 0 ? 0 : value);
+				}
+			}
+			else
+			{
+				for (int x = 0; x < width; x++)
+				{
+					out[o + x] = (float) (colSum[x] / n);
+				}
+			}
+		}
+	}
+
+	private static void add(double[] target, double[] values, int sign)
+	{
+		if(sign > 0)
+		{
+			for (int x = 0; x < target.length; x++)
+			{
+				target[x] += values[x];
+			}
+		}
+		else
+		{
+			for (int x = 0; x < target.length; x++)
+			{
+				target[x] -= values[x];
+			}
+		}
+	}
+
+	/**
+	 * Running sums (and sums of squares when sum2 != null) of width 2k+1 along one row.
+	 */
+	private static void rowSums(float[] in, int width, int row, int k, double[] sum, double[] sum2)
+	{
+		int offset = row * width;
+		int maxX = width - 1;
+		double s = 0, s2 = 0;
+		for (int j = -k; j <= k; j++)
+		{
+			double v = in[offset + clamp(j, maxX)];
+			s += v;
+			s2 += v * v;
+		}
+		sum[0] = s;
+		if(sum2 != null)
+		{
+			sum2[0] = s2;
+		}
+		for (int x = 1; x < width; x++)
+		{
+			double add = in[offset + clamp(x + k, maxX)];
+			double sub = in[offset + clamp(x - k - 1, maxX)];
+			s += add - sub;
+			sum[x] = s;
+			if(sum2 != null)
+			{
+				s2 += add * add - sub * sub;
+				sum2[x] = s2;
+			}
+		}
+	}
+
+	// ----------------------------------------------------
+	// ------------------- MIN AND MAX --------------------
+	// ----------------------------------------------------
+
+	private static void extremeFilter(float[] in, int width, int rowOffset, int fullHeight, int k, boolean max, int outStart, int outEnd, float[] out)
+	{
+		int s = 2 * k + 1;
+		int maxRow = fullHeight - 1;
+		int firstImageRow = rowOffset + outStart - k;
+
+		// Horizontal pass on every (edge clamped) row needed by the vertical pass
+		int nPadded = (outEnd - outStart) + 2 * k;
+		float[] rowsOut = new float[nPadded * width];
+		float[] line = new float[width + 2 * k];
+		float[] g = new float[width + 2 * k];
+		float[] h = new float[width + 2 * k];
+		float[] result = new float[width];
+		for (int p = 0; p < nPadded; p++)
+		{
+			int offset = (clamp(firstImageRow + p, maxRow) - rowOffset) * width;
+			for (int x = 0; x < line.length; x++)
+			{
+				line[x] = in[offset + clamp(x - k, width - 1)];
+			}
+			vanHerk(line, line.length, s, max, g, h, result);
+			System.arraycopy(result, 0, rowsOut, p * width, width);
+		}
+
+		// Vertical pass, done a whole row at a time
+		float[] gRows = new float[nPadded * width];
+		float[] hRows = new float[nPadded * width];
+		for (int p = 0; p < nPadded; p++)
+		{
+			int o = p * width;
+			if(p % s == 0)
+			{
+				System.arraycopy(rowsOut, o, gRows, o, width);
+			}
+			else
+			{
+				combine(gRows, o - width, rowsOut, o, gRows, o, width, max);
+			}
+		}
+		for (int p = nPadded - 1; p >= 0; p--)
+		{
+			int o = p * width;
+			if(p == nPadded - 1 || (p + 1) % s == 0)
+			{
+				System.arraycopy(rowsOut, o, hRows, o, width);
+			}
+			else
+			{
+				combine(hRows, o + width, rowsOut, o, hRows, o, width, max);
+			}
+		}
+		for (int y = 0; y < outEnd - outStart; y++)
+		{
+			combine(hRows, y * width, gRows, (y + s - 1) * width, out, y * width, width, max);
+		}
+	}
+
+	/**
+	 * dst[dstOff + i] = max (or min) of a[aOff + i] and b[bOff + i].
+	 */
+	private static void combine(float[] a, int aOff, float[] b, int bOff, float[] dst, int dstOff, int n, boolean max)
+	{
+		if(max)
+		{
+			for (int i = 0; i < n; i++)
+			{
+				dst[dstOff + i] = Math.max(a[aOff + i], b[bOff + i]);
+			}
+		}
+		else
+		{
+			for (int i = 0; i < n; i++)
+			{
+				dst[dstOff + i] = Math.min(a[aOff + i], b[bOff + i]);
+			}
+		}
+	}
+
+	/**
+	 * Van Herk / Gil-Werman sliding window max (or min) of width s. 'line' holds n padded values and 'out' receives
+	 * n - s + 1 results. g and h are scratch arrays of length n.
+	 */
+	private static void vanHerk(float[] line, int n, int s, boolean max, float[] g, float[] h, float[] out)
+	{
+		for (int i = 0; i < n; i++)
+		{
+			if(i % s == 0)
+			{
+				g[i] = line[i];
+			}
+			else
+			{
+				g[i] = max ? Math.max(g[i - 1], line[i]) : Math.min(g[i - 1], line[i]);
+			}
+		}
+		for (int i = n - 1; i >= 0; i--)
+		{
+			if(i == n - 1 || (i + 1) % s == 0)
+			{
+				h[i] = line[i];
+			}
+			else
+			{
+				h[i] = max ? Math.max(h[i + 1], line[i]) : Math.min(h[i + 1], line[i]);
+			}
+		}
+		for (int i = 0; i < n - s + 1; i++)
+		{
+			out[i] = max ? Math.max(h[i], g[i + s - 1]) : Math.min(h[i], g[i + s - 1]);
+		}
+	}
+}
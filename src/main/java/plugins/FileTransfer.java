@@ -0,0 +1,157 @@
+package plugins;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+
+import Database.SingleUserDatabase.JEXWriter;
+
+/**
+ * Helpers for moving files around without pushing their bytes through the heap. Copies use FileChannel.transferTo so
+ * the operating system can move the data directly, and hard links are used when the caller allows it and both files
+ * live on the same file system.
+ *
+ */
+public class FileTransfer {
+
+	/**
+	 * True if dst exists and has the same size and modification time as src (i.e., a previous copy or link of src).
+	 */
+	public static boolean isUpToDate(File src, File dst)
+	{
+		return dst.exists() && dst.length() == src.length() && dst.lastModified() == src.lastModified();
+	}
+
+	/**
+	 * True if the file and the folder are on the same file system (so a hard link between them is possible).
+	 */
+	public static boolean isSameFileStore(File file, File folder)
+	{
+		try
+		{
+			FileStore a = Files.getFileStore(file.toPath());
+			FileStore b = Files.getFileStore(folder.toPath());
+			return a.equals(b);
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Create dst as a hard link to src. Returns false if the file system doesn't support it, in which case nothing is
+	 * created.
+	 */
+	public static boolean link(File src, File dst)
+	{
+		try
+		{
+			if(dst.exists() && !dst.delete())
+			{
+				return false;
+			}
+			Files.createLink(dst.toPath(), src.toPath());
+			return true;
+		}
+		catch (UnsupportedOperationException e)
+		{
+			return false;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+		catch (SecurityException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Copy src to dst with FileChannel.transferTo and give dst the modification time of src so isUpToDate recognizes it
+	 * later.
+	 *
+	 * @return the number of bytes copied
+	 */
+	public static long copy(File src, File dst) throws IOException
+	{
+		FileInputStream in = null;
+		FileOutputStream out = null;
+		long size = 0;
+		try
+		{
+			in = new FileInputStream(src);
+			out = new FileOutputStream(dst);
+			FileChannel inChannel = in.getChannel();
+			FileChannel outChannel = out.getChannel();
+			size = inChannel.size();
+			long position = 0;
+			while(position < size)
+			{
+				position = position + inChannel.transferTo(position, size - position, outChannel);
+			}
+		}
+		finally
+		{
+			if(in != null)
+			{
+				in.close();
+			}
+			if(out != null)
+			{
+				out.close();
+			}
+		}
+		dst.setLastModified(src.lastModified());
+		return size;
+	}
+
+	/**
+	 * Hard link dst to src when allowed and possible, otherwise copy. A link shares its contents with src, so writing to
+	 * dst changes src too; only allow links when dst won't be edited.
+	 *
+	 * @return the number of bytes actually copied (0 if a link was made)
+	 */
+	public static long linkOrCopy(File src, File dst, boolean allowLink) throws IOException
+	{
+		if(allowLink && isSameFileStore(src, dst.getAbsoluteFile().getParentFile()) && link(src, dst))
+		{
+			return 0;
+		}
+		return copy(src, dst);
+	}
+
+	/**
+	 * Extension of a file name without the dot ("" if there is none).
+	 */
+	public static String getExtension(File f)
+	{
+		String name = f.getName();
+		int dot = name.lastIndexOf('.');
+		return dot < 0 ? "" : name.substring(dot + 1);
+	}
+
+	/**
+	 * Put a file into the database temp folder the same way JEXWriter.saveFile does, but as a hard link to the original
+	 * when the file system allows it so no pixels are duplicated. Falls back to JEXWriter.saveFile (a real copy) when
+	 * the file can't be shared.
+	 *
+	 * @return the path of the new temp file
+	 */
+	public static String shareFile(File src)
+	{
+		String ext = getExtension(src);
+		File dst = new File(JEXWriter.getDatabaseFolder() + File.separator + JEXWriter.getUniqueRelativeTempPath(ext));
+		dst.getParentFile().mkdirs();
+		if(isSameFileStore(src, dst.getParentFile()) && link(src, dst))
+		{
+			return dst.getAbsolutePath();
+		}
+		return JEXWriter.saveFile(src);
+	}
+}
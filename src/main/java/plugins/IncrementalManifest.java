@@ -0,0 +1,168 @@
+package plugins;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import Database.DBObjects.JEXEntry;
+import function.plugin.mechanism.JEXPlugin;
+import tables.DimensionMap;
+
+/**
+ * Remembers which input files a plugin processed for an entry (path, size, and modification time per DimensionMap,
+ * along with the parameter fingerprint) so the next run can tell which planes are new or changed. Unchanged planes can
+ * then be taken from the previous run's output instead of being processed again, e.g. while an acquisition keeps adding
+ * timepoints to the same image object.
+ *
+ * The manifest is a small tab separated text file in a state folder chosen by the user.
+ *
+ */
+public class IncrementalManifest {
+
+	private final File file;
+	private final String fingerprint;
+	private final TreeMap<String,String> previous = new TreeMap<String,String>();
+
+	private IncrementalManifest(File file, String fingerprint)
+	{
+		this.file = file;
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * Load the manifest of the last run of this plugin on this entry and input. If the parameters have changed since,
+	 * the previous run is ignored so every plane is treated as changed.
+	 */
+	public static IncrementalManifest load(File folder, JEXPlugin plugin, JEXEntry entry, String inputName, String fingerprint)
+	{
+		String entryID = entry == null ? "none" : entry.getEntryID();
+		String id = ParameterFingerprint.hash(plugin.getClass().getName() + ";" + entryID + ";" + inputName);
+		folder.mkdirs();
+		IncrementalManifest ret = new IncrementalManifest(new File(folder, id + ".manifest"), fingerprint);
+		if(!ret.file.exists())
+		{
+			return ret;
+		}
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new FileReader(ret.file));
+			String line = reader.readLine();
+			if(line == null || !line.equals(fingerprint))
+			{
+				return ret;
+			}
+			while((line = reader.readLine()) != null)
+			{
+				int tab = line.indexOf('\t');
+				if(tab > 0)
+				{
+					ret.previous.put(line.substring(0, tab), line.substring(tab + 1));
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+			ret.previous.clear();
+		}
+		finally
+		{
+			close(reader);
+		}
+		return ret;
+	}
+
+	/**
+	 * Describe an input file as "path \t size \t modified".
+	 */
+	public static String describe(String path)
+	{
+		File f = new File(path);
+		return path + "\t" + f.length() + "\t" + f.lastModified();
+	}
+
+	/**
+	 * True if the plane was processed in the previous run from an identical file.
+	 */
+	public boolean isUnchanged(DimensionMap map, String path)
+	{
+		String before = this.previous.get(map.toString());
+		return before != null && before.equals(describe(path));
+	}
+
+	/**
+	 * Split the input table into planes that need processing and planes whose previous output can be reused.
+	 *
+	 * @param previousOutputs output table of the previous run (may be null)
+	 * @param toProcess receives the new or changed planes (or those without a previous output)
+	 * @return the previous output paths of the unchanged planes
+	 */
+	public TreeMap<DimensionMap,String> split(TreeMap<DimensionMap,String> inputMap, TreeMap<DimensionMap,String> previousOutputs, TreeMap<DimensionMap,String> toProcess)
+	{
+		TreeMap<DimensionMap,String> unchanged = new TreeMap<DimensionMap,String>();
+		for (Entry<DimensionMap,String> e : inputMap.entrySet())
+		{
+			String previousOutput = previousOutputs == null ? null : previousOutputs.get(e.getKey());
+			if(previousOutput != null && new File(previousOutput).exists() && this.isUnchanged(e.getKey(), e.getValue()))
+			{
+				unchanged.put(e.getKey(), previousOutput);
+			}
+			else
+			{
+				toProcess.put(e.getKey(), e.getValue());
+			}
+		}
+		return unchanged;
+	}
+
+	/**
+	 * Record the inputs of a completed run.
+	 */
+	public void save(TreeMap<DimensionMap,String> inputMap)
+	{
+		Writer w = null;
+		try
+		{
+			w = new FileWriter(this.file);
+			w.write(this.fingerprint);
+			w.write("\n");
+			for (Entry<DimensionMap,String> e : inputMap.entrySet())
+			{
+				w.write(e.getKey().toString());
+				w.write("\t");
+				w.write(describe(e.getValue()));
+				w.write("\n");
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			close(w);
+		}
+	}
+
+	private static void close(Closeable c)
+	{
+		if(c != null)
+		{
+			try
+			{
+				c.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,250 @@
+package plugins;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import jex.utilities.FunctionUtility;
+
+/**
+ * Lookup table version of FunctionUtility.imAdjust followed by FunctionUtility.makeImageToSave for 8- and 16-bit
+ * images. The table is filled by running those exact functions once on every possible input intensity, so mapping a
+ * plane through it gives the same pixels as the float path without the float copy or the per-pixel Math.pow.
+ *
+ */
+public class IntensityLUT {
+
+	private final int inputBitDepth;
+	private final int outputBitDepth;
+	private byte[] lut8 = null;
+	private short[] lut16 = null;
+	private float[] lut32 = null;
+
+	private IntensityLUT(int inputBitDepth, int outputBitDepth)
+	{
+		this.inputBitDepth = inputBitDepth;
+		this.outputBitDepth = outputBitDepth;
+	}
+
+	/**
+	 * Build the table for an 8- or 16-bit input mapped to the requested output bit depth.
+	 */
+	public static IntensityLUT create(int inputBitDepth, double oldMin, double oldMax, double newMin, double newMax, double gamma, int bitDepth)
+	{
+		int size = 1 << inputBitDepth;
+		float[] values = new float[size];
+		for (int i = 0; i < size; i++)
+		{
+			values[i] = i;
+		}
+		FloatProcessor fp = new FloatProcessor(size, 1, values, null);
+		FunctionUtility.imAdjust(fp, oldMin, oldMax, newMin, newMax, gamma);
+		ImagePlus mapped = FunctionUtility.makeImageToSave(fp, "false", bitDepth);
+		Object pixels = mapped.getProcessor().getPixels();
+
+		IntensityLUT ret = new IntensityLUT(inputBitDepth, bitDepth);
+		if(pixels instanceof byte[])
+		{
+			ret.lut8 = ((byte[]) pixels).clone();
+		}
+		else if(pixels instanceof short[])
+		{
+			ret.lut16 = ((short[]) pixels).clone();
+		}
+		else
+		{
+			ret.lut32 = ((float[]) pixels).clone();
+		}
+		mapped.flush();
+		return ret;
+	}
+
+	public int getInputBitDepth()
+	{
+		return this.inputBitDepth;
+	}
+
+	public int getOutputBitDepth()
+	{
+		return this.outputBitDepth;
+	}
+
+	/**
+	 * Returns 8 or 16 if the processor can be mapped with a table, 0 otherwise (float, RGB, or calibrated images).
+	 */
+	public static int getSupportedBitDepth(ImageProcessor ip)
+	{
+		if(ip.getCalibrationTable() != null)
+		{
+			return 0;
+		}
+		if(ip instanceof ByteProcessor)
+		{
+			return 8;
+		}
+		if(ip instanceof ShortProcessor)
+		{
+			return 16;
+		}
+		return 0;
+	}
+
+	/**
+	 * Map the pixels of ip through the table into a new processor of the output bit depth.
+	 */
+	public ImageProcessor apply(ImageProcessor ip)
+	{
+		return this.apply(ip, null);
+	}
+
+	/**
+	 * Same as apply(ip) but the output pixels are borrowed from pool (unless it is null).
+	 */
+	public ImageProcessor apply(ImageProcessor ip, PixelBufferPool pool)
+	{
+		int w = ip.getWidth(), h = ip.getHeight();
+		int n = w * h;
+		Object pixels = ip.getPixels();
+		if(this.lut8 != null)
+		{
+			byte[] out = pool == null ? new byte[n] : pool.borrowByte(n);
+			this.map(pixels, out);
+			return new ByteProcessor(w, h, out, null);
+		}
+		else if(this.lut16 != null)
+		{
+			short[] out = pool == null ? new short[n] : pool.borrowShort(n);
+			this.map(pixels, out);
+			return new ShortProcessor(w, h, out, null);
+		}
+		else
+		{
+			float[] out = pool == null ? new float[n] : pool.borrowFloat(n);
+			this.map(pixels, out);
+			return new FloatProcessor(w, h, out, null);
+		}
+	}
+
+	private void map(Object in, byte[] out)
+	{
+		byte[] lut = this.lut8;
+		if(in instanceof byte[])
+		{
+			byte[] src = (byte[]) in;
+			for (int i = 0; i < out.length; i++)
+			{
+				out[i] = lut[src[i] & 0xff];
+			}
+		}
+		else
+		{
+			short[] src = (short[]) in;
+			for (int i = 0; i < out.length; i++)
+			{
+				out[i] = lut[src[i] & 0xffff];
+			}
+		}
+	}
+
+	private void map(Object in, short[] out)
+	{
+		short[] lut = this.lut16;
+		if(in instanceof byte[])
+		{
+			byte[] src = (byte[]) in;
+			for (int i = 0; i < out.length; i++)
+			{
+				out[i] = lut[src[i] & 0xff];
+			}
+		}
+		else
+		{
+			short[] src = (short[]) in;
+			for (int i = 0; i < out.length; i++)
+			{
+				out[i] = lut[src[i] & 0xffff];
+			}
+		}
+	}
+
+	private void map(Object in, float[] out)
+	{
+		float[] lut = this.lut32;
+		if(in instanceof byte[])
+		{
+			byte[] src = (byte[]) in;
+			for (int i = 0; i < out.length; i++)
+			{
+				out[i] = lut[src[i] & 0xff];
+			}
+		}
+		else
+		{
+			short[] src = (short[]) in;
+			for (int i = 0; i < out.length; i++)
+			{
+				out[i] = lut[src[i] & 0xffff];
+			}
+		}
+	}
+
+	/**
+	 * Holds the 8- and 16-bit tables for one set of adjustment parameters, building each one the first time a plane of
+	 * that depth is seen. Safe to share between the threads of a single run.
+	 */
+	public static class Cache
+	{
+		private final double oldMin, oldMax, newMin, newMax, gamma;
+		private final int bitDepth;
+		private IntensityLUT lut8 = null, lut16 = null;
+		private PixelKernels.Adjust kernel = null;
+
+		public Cache(double oldMin, double oldMax, double newMin, double newMax, double gamma, int bitDepth)
+		{
+			this.oldMin = oldMin;
+			this.oldMax = oldMax;
+			this.newMin = newMin;
+			this.newMax = newMax;
+			this.gamma = gamma;
+			this.bitDepth = bitDepth;
+		}
+
+		/**
+		 * Returns the table for the processor's bit depth or null if the processor must take the float path.
+		 */
+		public synchronized IntensityLUT get(ImageProcessor ip)
+		{
+			int depth = getSupportedBitDepth(ip);
+			if(depth == 8)
+			{
+				if(this.lut8 == null)
+				{
+					this.lut8 = IntensityLUT.create(8, this.oldMin, this.oldMax, this.newMin, this.newMax, this.gamma, this.bitDepth);
+				}
+				return this.lut8;
+			}
+			else if(depth == 16)
+			{
+				if(this.lut16 == null)
+				{
+					this.lut16 = IntensityLUT.create(16, this.oldMin, this.oldMax, this.newMin, this.newMax, this.gamma, this.bitDepth);
+				}
+				return this.lut16;
+			}
+			return null;
+		}
+		
+		/**
+		 * Returns the array kernel for float planes.
+		 */
+		public synchronized PixelKernels.Adjust getKernel()
+		{
+			if(this.kernel == null)
+			{
+				this.kernel = new PixelKernels.Adjust(this.oldMin, this.oldMax, this.newMin, this.newMax, this.gamma, this.bitDepth);
+			}
+			return this.kernel;
+		}
+	}
+}
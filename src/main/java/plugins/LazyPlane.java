@@ -0,0 +1,178 @@
+package plugins;
+
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import ij.process.ImageProcessor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import Database.SingleUserDatabase.JEXWriter;
+
+/**
+ * A plane that hasn't been computed yet. Instead of pixels, the file (extension .jxl) holds a recipe: the path of the
+ * source plane, the name of a point operation, and its parameters. The plane is computed the first time something
+ * reads it through resolve (or RawPlane.openImage) and saved next to the recipe as a TIFF, so later reads cost no more
+ * than a normal plane.
+ *
+ * A lazy image depends on its source image staying in the database. Materialize it (Example_MaterializeLazyImage)
+ * before archiving or deleting the source.
+ *
+ */
+public class LazyPlane {
+
+	public static final String EXTENSION = "jxl";
+	public static final String ADJUST = "adjust";
+
+	private static final ConcurrentHashMap<String,Object> locks = new ConcurrentHashMap<String,Object>();
+
+	/**
+	 * True if the file at path is a recipe.
+	 */
+	public static boolean isLazy(String path)
+	{
+		return path != null && EXTENSION.equals(FileTransfer.getExtension(new File(path)));
+	}
+
+	/**
+	 * Write a recipe to a new file in the database temp folder.
+	 *
+	 * @param params parameter names and values of the operation
+	 * @return the path of the new temp file
+	 */
+	public static String save(String sourcePath, String operation, Properties params) throws IOException
+	{
+		Properties recipe = new Properties();
+		recipe.putAll(params);
+		recipe.setProperty("operation", operation);
+		recipe.setProperty("source", new File(sourcePath).getAbsolutePath());
+		File f = new File(JEXWriter.getDatabaseFolder() + File.separator + JEXWriter.getUniqueRelativeTempPath(EXTENSION));
+		f.getParentFile().mkdirs();
+		OutputStream out = new FileOutputStream(f);
+		try
+		{
+			recipe.store(out, "JEX lazy plane");
+		}
+		finally
+		{
+			out.close();
+		}
+		return f.getAbsolutePath();
+	}
+
+	/**
+	 * Recipe for Example_AdjustImage.adjustImage.
+	 */
+	public static String saveAdjust(String sourcePath, double oldMin, double oldMax, double newMin, double newMax, double gamma, int bitDepth) throws IOException
+	{
+		Properties params = new Properties();
+		params.setProperty("oldMin", "" + oldMin);
+		params.setProperty("oldMax", "" + oldMax);
+		params.setProperty("newMin", "" + newMin);
+		params.setProperty("newMax", "" + newMax);
+		params.setProperty("gamma", "" + gamma);
+		params.setProperty("bitDepth", "" + bitDepth);
+		return save(sourcePath, ADJUST, params);
+	}
+
+	/**
+	 * Path of a file holding the pixels of the plane at path, computing and saving the plane first if it is a recipe
+	 * that hasn't been computed yet. Other paths are returned as they are.
+	 */
+	public static String resolve(String path) throws IOException
+	{
+		if(!isLazy(path))
+		{
+			return path;
+		}
+		File memo = getMemoFile(path);
+		if(memo.exists())
+		{
+			return memo.getAbsolutePath();
+		}
+		// Only compute each plane once even if several threads ask for it at the same time. Locks are never removed, so
+		// every thread asking for a plane waits on the same one.
+		Object lock = new Object();
+		Object existing = locks.putIfAbsent(memo.getAbsolutePath(), lock);
+		synchronized(existing == null ? lock : existing)
+		{
+			if(!memo.exists())
+			{
+				ImageProcessor ip = compute(path);
+				File part = new File(memo.getPath() + ".part");
+				if(!new FileSaver(new ImagePlus(memo.getName(), ip)).saveAsTiff(part.getPath()) || !part.renameTo(memo))
+				{
+					part.delete();
+					throw new IOException("Couldn't save computed plane " + memo.getPath());
+				}
+			}
+		}
+		return memo.getAbsolutePath();
+	}
+
+	/**
+	 * Compute the plane described by the recipe at path (without saving it).
+	 */
+	public static ImageProcessor compute(String path) throws IOException
+	{
+		Properties recipe = load(path);
+		String operation = recipe.getProperty("operation");
+		String source = recipe.getProperty("source");
+		if(source == null || !new File(resolve(source)).exists())
+		{
+			throw new IOException("Source of lazy plane " + path + " no longer exists: " + source);
+		}
+		ImagePlus im = RawPlane.openImage(source);
+		try
+		{
+			if(ADJUST.equals(operation))
+			{
+				return Example_AdjustImage.adjustImage(im.getProcessor(), null, getDouble(recipe, "oldMin"), getDouble(recipe, "oldMax"), getDouble(recipe, "newMin"), getDouble(recipe, "newMax"), getDouble(recipe, "gamma"), (int) getDouble(recipe, "bitDepth"));
+			}
+			throw new IOException("Unknown lazy plane operation '" + operation + "' in " + path);
+		}
+		finally
+		{
+			im.flush();
+		}
+	}
+
+	/**
+	 * Where the computed plane of the recipe at path is kept.
+	 */
+	public static File getMemoFile(String path)
+	{
+		return new File(path + ".tif");
+	}
+
+	private static Properties load(String path) throws IOException
+	{
+		Properties ret = new Properties();
+		InputStream in = new FileInputStream(path);
+		try
+		{
+			ret.load(in);
+		}
+		finally
+		{
+			in.close();
+		}
+		return ret;
+	}
+
+	private static double getDouble(Properties recipe, String name) throws IOException
+	{
+		String value = recipe.getProperty(name);
+		if(value == null)
+		{
+			throw new IOException("Lazy plane recipe is missing '" + name + "'");
+		}
+		return Double.parseDouble(value);
+	}
+}
@@ -0,0 +1,245 @@
+package plugins;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import tables.DimensionMap;
+import function.plugin.mechanism.JEXPlugin;
+
+/**
+ * Append-only file of DimensionMap to output path records, written in batches while planes finish instead of only
+ * existing in memory until the end of the run. Each batch is synced to disk, so if a run stops part way (cancel, crash,
+ * power loss) the records of every completed batch survive, and the next run can open the same journal and skip the
+ * planes that were already registered.
+ *
+ * The records point at the outputs' files in the database temp folder. JEX may clean that folder up before the run is
+ * resumed (e.g., when it restarts); records whose file no longer exists are skipped by read(), so those planes are
+ * simply computed again.
+ *
+ * Each line is "dim=value,dim=value \t path" with names, values, and paths URL encoded. A partially written last line
+ * (from a crash in the middle of a write) is ignored when the journal is read.
+ *
+ */
+public class OutputJournal {
+
+	/**
+	 * Number of records held in memory before they are written.
+	 */
+	public static final int BATCH_SIZE = 64;
+
+	private final File file;
+	private final StringBuilder pending = new StringBuilder();
+	private int pendingCount = 0;
+	private FileOutputStream out = null;
+
+	public OutputJournal(File file)
+	{
+		this.file = file;
+	}
+
+	/**
+	 * Checkpoint journal in folder for one run of plugin over inputMap. Re-running with the same input files (same
+	 * paths, sizes, and modification times) and the same parameter fingerprint opens the same journal.
+	 */
+	public static OutputJournal forInputs(File folder, JEXPlugin plugin, TreeMap<DimensionMap,String> inputMap, String fingerprint)
+	{
+		StringBuilder id = new StringBuilder(plugin.getClass().getName());
+		id.append(";").append(fingerprint);
+		for (Entry<DimensionMap,String> e : inputMap.entrySet())
+		{
+			id.append("\n").append(formatMap(e.getKey())).append("\t").append(IncrementalManifest.describe(e.getValue()));
+		}
+		return new OutputJournal(new File(folder, "checkpoint-" + ParameterFingerprint.hash(id.toString()) + ".journal"));
+	}
+
+	public File getFile()
+	{
+		return this.file;
+	}
+
+	/**
+	 * Records of previous runs (or of this one, once flushed) whose output files still exist.
+	 */
+	public synchronized TreeMap<DimensionMap,String> read()
+	{
+		TreeMap<DimensionMap,String> ret = new TreeMap<DimensionMap,String>();
+		if(!this.file.exists())
+		{
+			return ret;
+		}
+		BufferedReader reader = null;
+		try
+		{
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(this.file), "UTF-8"));
+			String line;
+			while((line = reader.readLine()) != null)
+			{
+				int tab = line.indexOf('\t');
+				if(tab < 0 || !line.endsWith(";"))
+				{
+					continue;
+				}
+				String path = decode(line.substring(tab + 1, line.length() - 1));
+				if(new File(path).exists())
+				{
+					ret.put(parseMap(line.substring(0, tab)), path);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			if(reader != null)
+			{
+				try
+				{
+					reader.close();
+				}
+				catch (IOException e)
+				{
+					e.printStackTrace();
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Add a record. It is written with the next full batch or on flush.
+	 */
+	public synchronized void append(DimensionMap map, String path)
+	{
+		if(path == null)
+		{
+			return;
+		}
+		// The trailing ';' marks a complete line
+		this.pending.append(formatMap(map)).append('\t').append(encode(path)).append(";\n");
+		this.pendingCount = this.pendingCount + 1;
+		if(this.pendingCount >= BATCH_SIZE)
+		{
+			this.flush();
+		}
+	}
+
+	/**
+	 * Write all pending records and wait until they are on disk.
+	 */
+	public synchronized void flush()
+	{
+		if(this.pendingCount == 0)
+		{
+			return;
+		}
+		try
+		{
+			if(this.out == null)
+			{
+				this.file.getParentFile().mkdirs();
+				this.out = new FileOutputStream(this.file, true);
+			}
+			this.out.write(this.pending.toString().getBytes("UTF-8"));
+			this.out.flush();
+			this.out.getFD().sync();
+			this.pending.setLength(0);
+			this.pendingCount = 0;
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Flush and close the file (the journal can still be read or appended to afterwards).
+	 */
+	public synchronized void close()
+	{
+		this.flush();
+		if(this.out != null)
+		{
+			try
+			{
+				this.out.close();
+			}
+			catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+			this.out = null;
+		}
+	}
+
+	/**
+	 * Close and remove the journal file.
+	 */
+	public synchronized void delete()
+	{
+		this.close();
+		this.file.delete();
+	}
+
+	private static String formatMap(DimensionMap map)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (Entry<String,String> e : map.entrySet())
+		{
+			if(sb.length() > 0)
+			{
+				sb.append(',');
+			}
+			sb.append(encode(e.getKey())).append('=').append(encode(e.getValue()));
+		}
+		return sb.toString();
+	}
+
+	private static DimensionMap parseMap(String s)
+	{
+		DimensionMap ret = new DimensionMap();
+		for (String pair : s.split(","))
+		{
+			int eq = pair.indexOf('=');
+			if(eq > 0)
+			{
+				ret.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+			}
+		}
+		return ret;
+	}
+
+	private static String encode(String s)
+	{
+		try
+		{
+			return URLEncoder.encode(s, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(String s)
+	{
+		try
+		{
+			return URLDecoder.decode(s, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package plugins;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import function.plugin.mechanism.JEXPlugin;
+import function.plugin.mechanism.ParameterMarker;
+
+/**
+ * Stable text and hash descriptions of a plugin's parameter values and of file contents, used to recognize when a
+ * plugin is being re-run with the same inputs and parameters.
+ *
+ */
+public class ParameterFingerprint {
+
+	/**
+	 * Describe the current values of the plugin's @ParameterMarker fields, e.g. "plugins.Example_Filters;method=mean;radius=2.0".
+	 * Fields are listed in name order so the result doesn't depend on declaration order.
+	 *
+	 * @param fieldNames the fields that affect the output; all @ParameterMarker fields are used if none are given
+	 */
+	public static String of(JEXPlugin plugin, String... fieldNames)
+	{
+		List<String> include = Arrays.asList(fieldNames);
+		TreeMap<String,String> values = new TreeMap<String,String>();
+		for (Field f : plugin.getClass().getDeclaredFields())
+		{
+			if(f.getAnnotation(ParameterMarker.class) == null)
+			{
+				continue;
+			}
+			if(fieldNames.length > 0 && !include.contains(f.getName()))
+			{
+				continue;
+			}
+			try
+			{
+				f.setAccessible(true);
+				values.put(f.getName(), String.valueOf(f.get(plugin)));
+			}
+			catch (IllegalAccessException e)
+			{
+				e.printStackTrace();
+			}
+		}
+		StringBuilder sb = new StringBuilder(plugin.getClass().getName());
+		for (String name : values.keySet())
+		{
+			sb.append(";").append(name).append("=").append(values.get(name));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * SHA-256 of a string as hex.
+	 */
+	public static String hash(String s)
+	{
+		try
+		{
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			return toHex(md.digest(s.getBytes("UTF-8")));
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * SHA-256 of a file's contents as hex.
+	 */
+	public static String hash(File f) throws IOException
+	{
+		MessageDigest md;
+		try
+		{
+			md = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		InputStream in = new FileInputStream(f);
+		try
+		{
+			byte[] buffer = new byte[1 << 16];
+			int n;
+			while((n = in.read(buffer)) > 0)
+			{
+				md.update(buffer, 0, n);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return toHex(md.digest());
+	}
+
+	private static String toHex(byte[] bytes)
+	{
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes)
+		{
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,314 @@
+package plugins;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import logs.Logs;
+
+/**
+ * Pool of float[], short[], and byte[] pixel arrays keyed by type and length, shared by every plugin and thread. Planes
+ * within a dataset are all the same size, so after the first few planes a per-plane loop that borrows its working
+ * arrays here and releases them when done stops allocating pixel arrays altogether.
+ *
+ * Borrowed arrays are not cleared. An array must not be used after it has been released. Arrays that weren't borrowed
+ * from the pool can be released too, which adds them to the pool. The pool only keeps idle arrays up to a memory limit;
+ * beyond that released arrays are left to the garbage collector.
+ *
+ */
+public class PixelBufferPool {
+
+	private static final PixelBufferPool shared = new PixelBufferPool(Runtime.getRuntime().maxMemory() / 8);
+
+	private final long maxIdleBytes;
+	private final ConcurrentHashMap<Long,ConcurrentLinkedQueue<Object>> idle = new ConcurrentHashMap<Long,ConcurrentLinkedQueue<Object>>();
+	// Every array in the queues, by identity, so an array released twice is only queued once
+	private final Set<Object> idleArrays = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+	private final AtomicLong idleBytes = new AtomicLong(0);
+	private final AtomicLong allocatedBytes = new AtomicLong(0);
+	private final AtomicLong maxIdleBytesSeen = new AtomicLong(0);
+	private final AtomicLong borrows = new AtomicLong(0);
+	private final AtomicLong allocations = new AtomicLong(0);
+	private final AtomicLong discards = new AtomicLong(0);
+
+	/**
+	 * @param maxIdleBytes most memory to hold in idle arrays
+	 */
+	public PixelBufferPool(long maxIdleBytes)
+	{
+		this.maxIdleBytes = maxIdleBytes;
+	}
+
+	/**
+	 * The pool shared by all plugins (idle arrays limited to an eighth of the maximum heap).
+	 */
+	public static PixelBufferPool getShared()
+	{
+		return shared;
+	}
+
+	public float[] borrowFloat(int length)
+	{
+		float[] ret = (float[]) this.take(4, length);
+		return ret == null ? this.allocated(new float[length], 4L * length) : ret;
+	}
+
+	public short[] borrowShort(int length)
+	{
+		short[] ret = (short[]) this.take(2, length);
+		return ret == null ? this.allocated(new short[length], 2L * length) : ret;
+	}
+
+	public byte[] borrowByte(int length)
+	{
+		byte[] ret = (byte[]) this.take(1, length);
+		return ret == null ? this.allocated(new byte[length], length) : ret;
+	}
+
+	/**
+	 * Borrow an array of the type used by processors of the given bit depth (8, 16, or 32).
+	 */
+	public Object borrow(int bitDepth, int length)
+	{
+		if(bitDepth == 8)
+		{
+			return this.borrowByte(length);
+		}
+		if(bitDepth == 16)
+		{
+			return this.borrowShort(length);
+		}
+		return this.borrowFloat(length);
+	}
+
+	/**
+	 * New processor of the given size and bit depth (8, 16, or 32) backed by a borrowed array.
+	 */
+	public ImageProcessor newProcessor(int width, int height, int bitDepth)
+	{
+		int n = width * height;
+		if(bitDepth == 8)
+		{
+			return new ByteProcessor(width, height, this.borrowByte(n), null);
+		}
+		if(bitDepth == 16)
+		{
+			return new ShortProcessor(width, height, this.borrowShort(n), null);
+		}
+		return new FloatProcessor(width, height, this.borrowFloat(n), null);
+	}
+
+	/**
+	 * Return the pixel array of ip to the pool (only for processors no longer in use).
+	 */
+	public void release(ImageProcessor ip)
+	{
+		if(ip != null)
+		{
+			this.release(ip.getPixels());
+		}
+	}
+
+	/**
+	 * Return an array to the pool. Arrays that aren't float[], short[], or byte[] are ignored.
+	 */
+	public void release(Object array)
+	{
+		int bytes;
+		int length;
+		if(array instanceof float[])
+		{
+			bytes = 4;
+			length = ((float[]) array).length;
+		}
+		else if(array instanceof short[])
+		{
+			bytes = 2;
+			length = ((short[]) array).length;
+		}
+		else if(array instanceof byte[])
+		{
+			bytes = 1;
+			length = ((byte[]) array).length;
+		}
+		else
+		{
+			return;
+		}
+		long size = ((long) bytes) * length;
+		synchronized(this.idleArrays)
+		{
+			if(!this.idleArrays.add(array))
+			{
+				// Released twice, keep only one reference so it can't be handed out to two borrowers
+				return;
+			}
+		}
+		if(this.idleBytes.addAndGet(size) > this.maxIdleBytes)
+		{
+			this.idleBytes.addAndGet(-size);
+			this.forget(array);
+			this.discards.incrementAndGet();
+			return;
+		}
+		this.getQueue(bytes, length).offer(array);
+		updateMax(this.maxIdleBytesSeen, this.idleBytes.get());
+	}
+
+	private Object take(int bytes, int length)
+	{
+		this.borrows.incrementAndGet();
+		Object ret = this.getQueue(bytes, length).poll();
+		if(ret != null)
+		{
+			this.idleBytes.addAndGet(-((long) bytes) * length);
+			this.forget(ret);
+		}
+		return ret;
+	}
+
+	private void forget(Object array)
+	{
+		synchronized(this.idleArrays)
+		{
+			this.idleArrays.remove(array);
+		}
+	}
+
+	private <T> T allocated(T array, long bytes)
+	{
+		this.allocations.incrementAndGet();
+		this.allocatedBytes.addAndGet(bytes);
+		return array;
+	}
+
+	private ConcurrentLinkedQueue<Object> getQueue(int bytes, int length)
+	{
+		Long key = (((long) bytes) << 32) | length;
+		ConcurrentLinkedQueue<Object> ret = this.idle.get(key);
+		if(ret == null)
+		{
+			this.idle.putIfAbsent(key, new ConcurrentLinkedQueue<Object>());
+			ret = this.idle.get(key);
+		}
+		return ret;
+	}
+
+	private static void updateMax(AtomicLong max, long value)
+	{
+		long current = max.get();
+		while(value > current && !max.compareAndSet(current, value))
+		{
+			current = max.get();
+		}
+	}
+
+	public long getBorrows()
+	{
+		return this.borrows.get();
+	}
+
+	/**
+	 * Number of borrows that had to allocate a new array.
+	 */
+	public long getAllocations()
+	{
+		return this.allocations.get();
+	}
+
+	/**
+	 * Total size of the arrays the pool has had to allocate.
+	 */
+	public long getAllocatedBytes()
+	{
+		return this.allocatedBytes.get();
+	}
+
+	/**
+	 * High-water mark of memory held in idle arrays.
+	 */
+	public long getMaxIdleBytes()
+	{
+		return this.maxIdleBytesSeen.get();
+	}
+
+	public void log(Object source)
+	{
+		Logs.log("Pixel buffer pool: " + this.borrows.get() + " borrows, " + this.allocations.get() + " allocations, " + this.discards.get() + " discarded, " + (this.allocatedBytes.get() / (1024 * 1024)) + " MB allocated, high-water mark of " + (this.maxIdleBytesSeen.get() / (1024 * 1024)) + " MB idle.", source);
+	}
+
+	/**
+	 * Same result as ip.convertToFloat() (without scaling) written into a borrowed array. RGB images fall back to
+	 * ImageJ's conversion.
+	 */
+	public FloatProcessor toFloat(ImageProcessor ip)
+	{
+		if(!(ip instanceof ByteProcessor || ip instanceof ShortProcessor || ip instanceof FloatProcessor))
+		{
+			return (FloatProcessor) ip.convertToFloat();
+		}
+		float[] out = this.borrowFloat(ip.getPixelCount());
+		toFloat(ip, out);
+		return new FloatProcessor(ip.getWidth(), ip.getHeight(), out, ip.getColorModel());
+	}
+
+	/**
+	 * Convert a float processor to bitDepth like Example_Filters.convertToBitDepth, writing into a borrowed array. A
+	 * bitDepth of 32 returns fp itself.
+	 */
+	public ImageProcessor toBitDepth(ImageProcessor fp, int bitDepth)
+	{
+		if(bitDepth == 8)
+		{
+			byte[] out = this.borrowByte(fp.getPixelCount());
+			PixelKernels.toByte((float[]) fp.getPixels(), out, out.length);
+			return new ByteProcessor(fp.getWidth(), fp.getHeight(), out, null);
+		}
+		if(bitDepth == 16)
+		{
+			short[] out = this.borrowShort(fp.getPixelCount());
+			PixelKernels.toShort((float[]) fp.getPixels(), out, out.length);
+			return new ShortProcessor(fp.getWidth(), fp.getHeight(), out, null);
+		}
+		return fp;
+	}
+
+	/**
+	 * Copy the pixels of an 8, 16, or 32-bit processor into out as floats (honoring a calibration table like
+	 * convertToFloat does).
+	 */
+	public static void toFloat(ImageProcessor ip, float[] out)
+	{
+		Object pixels = ip.getPixels();
+		float[] cTable = ip.getCalibrationTable();
+		int n = ip.getPixelCount();
+		if(pixels instanceof byte[])
+		{
+			byte[] in = (byte[]) pixels;
+			for (int i = 0; i < n; i++)
+			{
+				out[i] = cTable == null ? (in[i] & 0xff) : cTable[in[i] & 0xff];
+			}
+		}
+		else if(pixels instanceof short[])
+		{
+			short[] in = (short[]) pixels;
+			for (int i = 0; i < n; i++)
+			{
+				out[i] = cTable == null ? (in[i] & 0xffff) : cTable[in[i] & 0xffff];
+			}
+		}
+		else
+		{
+			System.arraycopy((float[]) pixels, 0, out, 0, n);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+package plugins;
+
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+/**
+ * Per-pixel loops over primitive arrays for the intensity adjustment and bit-depth conversions used by the example
+ * plugins. The loops are simple counted loops without branches (Math.min and Math.max for clamping) so HotSpot can
+ * unroll and vectorize them, unlike going through a processor's getPixelValue and putPixelValue.
+ *
+ * The kernels give bit-identical pixels to ImageJ and FunctionUtility; PixelKernelsTest checks this over the whole
+ * 16-bit range and the edge cases of the float to integer conversions.
+ *
+ */
+public class PixelKernels {
+
+	/**
+	 * Clamp each value to [oldMin, oldMax], scale it to [0, 1], apply gamma, and scale it to [newMin, newMax]. Done in
+	 * double precision like FunctionUtility.imAdjust. in and out may be the same array.
+	 */
+	public static void adjust(float[] in, float[] out, int n, double oldMin, double oldMax, double newMin, double newMax, double gamma)
+	{
+		double oldRange = oldMax - oldMin;
+		double newRange = newMax - newMin;
+		if(gamma == 1.0)
+		{
+			for (int i = 0; i < n; i++)
+			{
+				double v = Math.min(Math.max(in[i], oldMin), oldMax);
+				out[i] = (float) (((v - oldMin) / oldRange) * newRange + newMin);
+			}
+		}
+		else
+		{
+			for (int i = 0; i < n; i++)
+			{
+				double v = Math.min(Math.max(in[i], oldMin), oldMax);
+				out[i] = (float) (Math.pow((v - oldMin) / oldRange, gamma) * newRange + newMin);
+			}
+		}
+	}
+
+	/**
+	 * Same as FloatProcessor.convertToShort(false): clamp to 0-65535 and round. Like ImageJ's TypeConverter the value
+	 * is widened to double before adding 0.5 (in float 0.49999997f + 0.5f rounds up to 1).
+	 */
+	public static void toShort(float[] in, short[] out, int n)
+	{
+		for (int i = 0; i < n; i++)
+		{
+			out[i] = (short) (int) (Math.min(Math.max((double) in[i], 0.0), 65535.0) + 0.5);
+		}
+	}
+
+	/**
+	 * Same as FloatProcessor.convertToByte(false): clamp to 0-255 and round, in double like toShort.
+	 */
+	public static void toByte(float[] in, byte[] out, int n)
+	{
+		for (int i = 0; i < n; i++)
+		{
+			out[i] = (byte) (int) (Math.min(Math.max((double) in[i], 0.0), 255.0) + 0.5);
+		}
+	}
+
+	/**
+	 * Kernel version of FunctionUtility.imAdjust followed by FunctionUtility.makeImageToSave for one set of parameters.
+	 */
+	public static class Adjust
+	{
+		private final double oldMin, oldMax, newMin, newMax, gamma;
+		private final int bitDepth;
+
+		public Adjust(double oldMin, double oldMax, double newMin, double newMax, double gamma, int bitDepth)
+		{
+			this.oldMin = oldMin;
+			this.oldMax = oldMax;
+			this.newMin = newMin;
+			this.newMax = newMax;
+			this.gamma = gamma;
+			this.bitDepth = bitDepth;
+		}
+
+		/**
+		 * Adjust fp in place and convert it to the output bit depth, borrowing the output array from pool unless it is
+		 * null. A 32-bit output returns fp itself.
+		 */
+		public ImageProcessor apply(FloatProcessor fp, PixelBufferPool pool)
+		{
+			float[] pixels = (float[]) fp.getPixels();
+			int n = pixels.length;
+			adjust(pixels, pixels, n, this.oldMin, this.oldMax, this.newMin, this.newMax, this.gamma);
+			if(this.bitDepth == 8)
+			{
+				byte[] out = pool == null ? new byte[n] : pool.borrowByte(n);
+				toByte(pixels, out, n);
+				return new ByteProcessor(fp.getWidth(), fp.getHeight(), out, null);
+			}
+			if(this.bitDepth == 16)
+			{
+				short[] out = pool == null ? new short[n] : pool.borrowShort(n);
+				toShort(pixels, out, n);
+				return new ShortProcessor(fp.getWidth(), fp.getHeight(), out, null);
+			}
+			fp.resetMinAndMax();
+			return fp;
+		}
+	}
+}
@@ -0,0 +1,273 @@
+package plugins;
+
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tables.DimensionMap;
+import function.plugin.mechanism.JEXPlugin;
+
+/**
+ * Runs a per-plane task over every DimensionMap of an n-Dimensional object, either one plane at a time or on a bounded
+ * pool of threads. Results are always returned in DimensionMap order so they can be handed straight to
+ * ImageWriter.makeImageStackFromPaths regardless of the order in which the planes finished.
+ *
+ * The number of planes in flight is limited to twice the number of threads so that large datasets don't queue up
+ * thousands of pending tasks (and their images) at once.
+ *
+ * A thread count of PlaneScheduler.SHARED sends the planes to the pool shared by all entries instead of starting new
+ * threads, if the plugin implements PlaneParallelSafe (otherwise planes run one at a time).
+ *
+ */
+public class PlaneExecutor {
+
+	/**
+	 * End of every "Plane Threads" parameter description, after "Number of planes to (verb)".
+	 */
+	public static final String THREADS_DESCRIPTION = " at the same time within each entry (0 shares one pool of threads, sized to the processors, with all entries being run)";
+
+	/**
+	 * Work to be performed on a single plane.
+	 */
+	public interface PlaneTask
+	{
+		/**
+		 * Process the plane found at path and return the path of the result, or null if nothing was produced.
+		 */
+		public String run(DimensionMap map, String path) throws Exception;
+	}
+
+	/**
+	 * Wrap the three stages of a PlanePipeline into a single task so the same code can run with or without the pipeline.
+	 */
+	public static <I,O> PlaneTask toTask(final PlanePipeline.Stages<I,O> stages)
+	{
+		return new PlaneTask(){
+			@Override
+			public String run(DimensionMap map, String path) throws Exception
+			{
+				I input = stages.read(map, path);
+				if(input == null)
+				{
+					return null;
+				}
+				O output = stages.process(map, input);
+				if(output == null)
+				{
+					return null;
+				}
+				return stages.write(map, output);
+			}
+		};
+	}
+
+	private final JEXPlugin plugin;
+	private final int nThreads;
+	private ProgressReporter progress = null;
+
+	public PlaneExecutor(JEXPlugin plugin, int nThreads)
+	{
+		this.plugin = plugin;
+		this.nThreads = Math.max(PlaneScheduler.SHARED, nThreads);
+	}
+
+	/**
+	 * Run the task on every plane of inputMap.
+	 *
+	 * @return the resulting paths sorted by DimensionMap, or null if the plugin was canceled
+	 */
+	public TreeMap<DimensionMap,String> run(TreeMap<DimensionMap,String> inputMap, PlaneTask task)
+	{
+		this.progress = new ProgressReporter(this.plugin, inputMap.size());
+		TreeMap<DimensionMap,String> ret;
+		if(this.nThreads == PlaneScheduler.SHARED && this.plugin instanceof PlaneParallelSafe && inputMap.size() > 1 && !PlaneScheduler.isSchedulerThread())
+		{
+			ret = this.runParallel(inputMap, task, PlaneScheduler.getPool(), 2 * PlaneScheduler.getParallelism(), false);
+		}
+		else if(this.nThreads <= 1 || inputMap.size() <= 1)
+		{
+			ret = this.runSerial(inputMap, task);
+		}
+		else
+		{
+			ret = this.runParallel(inputMap, task, Executors.newFixedThreadPool(this.nThreads, new PlaneThreadFactory()), 2 * this.nThreads, true);
+		}
+		this.progress.finish();
+		return ret;
+	}
+
+	private TreeMap<DimensionMap,String> runSerial(TreeMap<DimensionMap,String> inputMap, PlaneTask task)
+	{
+		TreeMap<DimensionMap,String> outputMap = new TreeMap<DimensionMap,String>();
+		for (Entry<DimensionMap,String> e : inputMap.entrySet())
+		{
+			if(this.plugin.isCanceled())
+			{
+				return null;
+			}
+			String path = this.runTask(task, e.getKey(), e.getValue());
+			if(path != null)
+			{
+				outputMap.put(e.getKey(), path);
+			}
+			this.progress.planeFinished();
+		}
+		return outputMap;
+	}
+
+	/**
+	 * @param window most planes to have submitted but not yet collected
+	 * @param shutdown true to shut the pool down when done (false for the shared pool)
+	 */
+	private TreeMap<DimensionMap,String> runParallel(final TreeMap<DimensionMap,String> inputMap, final PlaneTask task, ExecutorService pool, int window, boolean shutdown)
+	{
+		TreeMap<DimensionMap,String> outputMap = new TreeMap<DimensionMap,String>();
+		ExecutorCompletionService<PlaneResult> completion = new ExecutorCompletionService<PlaneResult>(pool);
+		int inFlight = 0;
+		try
+		{
+			for (final Entry<DimensionMap,String> e : inputMap.entrySet())
+			{
+				// Wait for a slot before submitting more work so memory stays bounded
+				while(inFlight >= window)
+				{
+					if(!this.collect(completion, outputMap))
+					{
+						return null;
+					}
+					inFlight = inFlight - 1;
+				}
+				if(this.plugin.isCanceled())
+				{
+					return null;
+				}
+				completion.submit(new PlaneCallable(task, e.getKey(), e.getValue()));
+				inFlight = inFlight + 1;
+			}
+			while(inFlight > 0)
+			{
+				if(!this.collect(completion, outputMap))
+				{
+					return null;
+				}
+				inFlight = inFlight - 1;
+			}
+			return outputMap;
+		}
+		finally
+		{
+			if(shutdown)
+			{
+				pool.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Wait for the next finished plane and store its result.
+	 *
+	 * @return false if the plugin was canceled or interrupted while waiting
+	 */
+	private boolean collect(ExecutorCompletionService<PlaneResult> completion, TreeMap<DimensionMap,String> outputMap)
+	{
+		if(this.plugin.isCanceled())
+		{
+			return false;
+		}
+		try
+		{
+			Future<PlaneResult> f = completion.take();
+			PlaneResult result = f.get();
+			if(result.path != null)
+			{
+				outputMap.put(result.map, result.path);
+			}
+			return true;
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return false;
+		}
+		catch (ExecutionException e)
+		{
+			// PlaneCallable already traps task failures so this shouldn't happen
+			e.printStackTrace();
+			return true;
+		}
+	}
+
+	private String runTask(PlaneTask task, DimensionMap map, String path)
+	{
+		try
+		{
+			return task.run(map, path);
+		}
+		catch (Exception e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private static class PlaneResult
+	{
+		final DimensionMap map;
+		final String path;
+
+		PlaneResult(DimensionMap map, String path)
+		{
+			this.map = map;
+			this.path = path;
+		}
+	}
+
+	private class PlaneCallable implements Callable<PlaneResult>
+	{
+		private final PlaneTask task;
+		private final DimensionMap map;
+		private final String path;
+
+		PlaneCallable(PlaneTask task, DimensionMap map, String path)
+		{
+			this.task = task;
+			this.map = map;
+			this.path = path;
+		}
+
+		@Override
+		public PlaneResult call()
+		{
+			// Planes left in a shared queue after a cancel are skipped
+			if(PlaneExecutor.this.plugin.isCanceled())
+			{
+				return new PlaneResult(this.map, null);
+			}
+			String result = PlaneExecutor.this.runTask(this.task, this.map, this.path);
+			PlaneExecutor.this.progress.planeFinished();
+			return new PlaneResult(this.map, result);
+		}
+	}
+
+	private static class PlaneThreadFactory implements ThreadFactory
+	{
+		private static final AtomicInteger poolCount = new AtomicInteger(0);
+		private final int poolNumber = poolCount.incrementAndGet();
+		private final AtomicInteger threadCount = new AtomicInteger(0);
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, "PlaneExecutor-" + this.poolNumber + "-" + this.threadCount.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,655 @@
+package plugins;
+
+import java.io.UnsupportedEncodingException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import logs.Logs;
+import tables.Dim;
+import tables.DimTable;
+import tables.DimensionMap;
+import Database.DBObjects.JEXData;
+import Database.DBObjects.JEXDataSingle;
+import Database.DataReader.ImageReader;
+
+/**
+ * Compact, read-only replacement for a large TreeMap<DimensionMap,String> plane table. Each DimensionMap is stored as
+ * the ordinals of its values in the object's DimTable, packed into one long, and each path as an offset and length into
+ * one byte array in which identical paths are only stored once. That is 16 bytes per plane plus the path text, instead
+ * of a DimensionMap, a String, and a tree node per plane.
+ *
+ * Planes are kept in the order of their packed keys (first dimension of the table slowest, values in table order),
+ * which is the order DimTable.getMapIterator visits them. Use slice() or groupBy() where getSubTableIterator would be
+ * used, and toTreeMap() / of() to convert to and from the usual table.
+ *
+ */
+public class PlaneIndex implements Iterable<Entry<DimensionMap,String>> {
+
+	private final String[] dims;
+	private final String[][] values;
+	private final List<HashMap<String,Integer>> ordinals;
+	private final int[] shifts;
+	private final long[] masks;
+
+	private final long[] keys;
+	private final int[] offsets;
+	private final int[] lengths;
+	private final byte[] paths;
+
+	private PlaneIndex(String[] dims, String[][] values, List<HashMap<String,Integer>> ordinals, int[] shifts, long[] masks, long[] keys, int[] offsets, int[] lengths, byte[] paths)
+	{
+		this.dims = dims;
+		this.values = values;
+		this.ordinals = ordinals;
+		this.shifts = shifts;
+		this.masks = masks;
+		this.keys = keys;
+		this.offsets = offsets;
+		this.lengths = lengths;
+		this.paths = paths;
+	}
+
+	/**
+	 * Index the planes of an image object against its DimTable. The paths are read straight from the object's data
+	 * map, without building the usual table first. Planes with a dimension or value that isn't in the DimTable are
+	 * left out and counted in a log message to source.
+	 */
+	public static PlaneIndex read(JEXData data, Object source)
+	{
+		Builder builder = new Builder(data.getDimTable());
+		int skipped = 0;
+		for (Entry<DimensionMap,JEXDataSingle> e : data.getDataMap().entrySet())
+		{
+			if(!builder.addIfKnown(e.getKey(), ImageReader.readImagePath(e.getValue())))
+			{
+				skipped = skipped + 1;
+			}
+		}
+		logSkipped(skipped, source);
+		return builder.build();
+	}
+
+	/**
+	 * Index map against table, leaving out (and logging to source) planes with a dimension or value that isn't in
+	 * table.
+	 */
+	public static PlaneIndex of(DimTable table, TreeMap<DimensionMap,String> map, Object source)
+	{
+		Builder builder = new Builder(table);
+		int skipped = 0;
+		for (Entry<DimensionMap,String> e : map.entrySet())
+		{
+			if(!builder.addIfKnown(e.getKey(), e.getValue()))
+			{
+				skipped = skipped + 1;
+			}
+		}
+		logSkipped(skipped, source);
+		return builder.build();
+	}
+
+	private static void logSkipped(int skipped, Object source)
+	{
+		if(skipped > 0)
+		{
+			Logs.log("Skipped " + skipped + " planes whose dimensions aren't in the DimTable.", source);
+		}
+	}
+
+	/**
+	 * Index map against the dimensions and values found in its own keys (numeric values in numeric order).
+	 */
+	public static PlaneIndex of(TreeMap<DimensionMap,String> map)
+	{
+		TreeMap<String,TreeSet<String>> found = new TreeMap<String,TreeSet<String>>();
+		for (DimensionMap key : map.keySet())
+		{
+			for (Entry<String,String> e : key.entrySet())
+			{
+				TreeSet<String> set = found.get(e.getKey());
+				if(set == null)
+				{
+					set = new TreeSet<String>();
+					found.put(e.getKey(), set);
+				}
+				set.add(e.getValue());
+			}
+		}
+		String[] dims = found.keySet().toArray(new String[found.size()]);
+		String[][] values = new String[dims.length][];
+		for (int d = 0; d < dims.length; d++)
+		{
+			List<String> sorted = PreviewSampler.sortValues(found.get(dims[d]));
+			values[d] = sorted.toArray(new String[sorted.size()]);
+		}
+		Builder builder = new Builder(dims, values);
+		for (Entry<DimensionMap,String> e : map.entrySet())
+		{
+			builder.add(e.getKey(), e.getValue());
+		}
+		return builder.build();
+	}
+
+	public int size()
+	{
+		return this.keys.length;
+	}
+
+	/**
+	 * Packed key of the i'th plane.
+	 */
+	public long getKey(int i)
+	{
+		return this.keys[i];
+	}
+
+	/**
+	 * DimensionMap of the i'th plane (made on each call).
+	 */
+	public DimensionMap getMap(int i)
+	{
+		return this.unpack(this.keys[i]);
+	}
+
+	/**
+	 * Path of the i'th plane (made on each call).
+	 */
+	public String getPath(int i)
+	{
+		try
+		{
+			return new String(this.paths, this.offsets[i], this.lengths[i], "UTF-8");
+		}
+		catch (UnsupportedEncodingException e)
+		{
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Path of the plane at map, or null if there isn't one.
+	 */
+	public String get(DimensionMap map)
+	{
+		long key = this.pack(map, false);
+		if(key < 0)
+		{
+			return null;
+		}
+		int i = Arrays.binarySearch(this.keys, key);
+		return i < 0 ? null : this.getPath(i);
+	}
+
+	/**
+	 * The planes whose values match every dimension of filter, like DimTable.getSubTableIterator. Paths are shared with
+	 * this index rather than copied.
+	 */
+	public PlaneIndex slice(DimensionMap filter)
+	{
+		long mask = 0;
+		long want = 0;
+		for (Entry<String,String> e : filter.entrySet())
+		{
+			int d = this.dimIndex(e.getKey());
+			Integer ordinal = (d < 0) ? null : this.ordinals.get(d).get(e.getValue());
+			if(ordinal == null)
+			{
+				return this.select(new int[0], 0);
+			}
+			mask = mask | this.masks[d];
+			want = want | ((long) (ordinal + 1) << this.shifts[d]);
+		}
+		int[] selected = new int[this.keys.length];
+		int n = 0;
+		for (int i = 0; i < this.keys.length; i++)
+		{
+			if((this.keys[i] & mask) == want)
+			{
+				selected[n] = i;
+				n = n + 1;
+			}
+		}
+		return this.select(selected, n);
+	}
+
+	/**
+	 * Split the planes by their values of dims in one pass, like getSubTableIterator over each combination. Groups are
+	 * in table order and keyed by just the dims (a dimension a plane doesn't have is left out of its key, and dims that
+	 * aren't in the table are ignored).
+	 */
+	public LinkedHashMap<DimensionMap,PlaneIndex> groupBy(String... dims)
+	{
+		long mask = 0;
+		for (String name : dims)
+		{
+			int d = this.dimIndex(name);
+			if(d >= 0)
+			{
+				mask = mask | this.masks[d];
+			}
+		}
+		long[] groups = new long[this.keys.length];
+		int[] order = new int[this.keys.length];
+		for (int i = 0; i < this.keys.length; i++)
+		{
+			groups[i] = this.keys[i] & mask;
+			order[i] = i;
+		}
+		// Stable, so the planes of each group stay in key order
+		Builder.mergeSort(order, new int[order.length], 0, order.length, groups);
+		LinkedHashMap<DimensionMap,PlaneIndex> ret = new LinkedHashMap<DimensionMap,PlaneIndex>();
+		int start = 0;
+		for (int j = 1; j <= order.length; j++)
+		{
+			if(j == order.length || groups[order[j]] != groups[order[start]])
+			{
+				ret.put(this.unpack(groups[order[start]]), this.select(Arrays.copyOfRange(order, start, j), j - start));
+				start = j;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * The usual table of this index.
+	 */
+	public TreeMap<DimensionMap,String> toTreeMap()
+	{
+		TreeMap<DimensionMap,String> ret = new TreeMap<DimensionMap,String>();
+		for (int i = 0; i < this.keys.length; i++)
+		{
+			ret.put(this.getMap(i), this.getPath(i));
+		}
+		return ret;
+	}
+
+	/**
+	 * Entries in index order. Each DimensionMap and path is made as it is visited.
+	 */
+	@Override
+	public Iterator<Entry<DimensionMap,String>> iterator()
+	{
+		return new Iterator<Entry<DimensionMap,String>>(){
+			private int i = 0;
+
+			@Override
+			public boolean hasNext()
+			{
+				return this.i < PlaneIndex.this.keys.length;
+			}
+
+			@Override
+			public Entry<DimensionMap,String> next()
+			{
+				if(!this.hasNext())
+				{
+					throw new NoSuchElementException();
+				}
+				Entry<DimensionMap,String> ret = new AbstractMap.SimpleImmutableEntry<DimensionMap,String>(PlaneIndex.this.getMap(this.i), PlaneIndex.this.getPath(this.i));
+				this.i = this.i + 1;
+				return ret;
+			}
+
+			@Override
+			public void remove()
+			{
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private PlaneIndex select(int[] selected, int n)
+	{
+		long[] keys = new long[n];
+		int[] offsets = new int[n];
+		int[] lengths = new int[n];
+		for (int j = 0; j < n; j++)
+		{
+			keys[j] = this.keys[selected[j]];
+			offsets[j] = this.offsets[selected[j]];
+			lengths[j] = this.lengths[selected[j]];
+		}
+		return new PlaneIndex(this.dims, this.values, this.ordinals, this.shifts, this.masks, keys, offsets, lengths, this.paths);
+	}
+
+	private int dimIndex(String name)
+	{
+		for (int d = 0; d < this.dims.length; d++)
+		{
+			if(this.dims[d].equals(name))
+			{
+				return d;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Ordinal + 1 of each value (0 for a missing dimension) in its field of the key.
+	 *
+	 * @param strict throw instead of returning -1 for unknown dimensions or values
+	 */
+	private long pack(DimensionMap map, boolean strict)
+	{
+		long key = 0;
+		for (Entry<String,String> e : map.entrySet())
+		{
+			int d = this.dimIndex(e.getKey());
+			Integer ordinal = (d < 0) ? null : this.ordinals.get(d).get(e.getValue());
+			if(ordinal == null)
+			{
+				if(strict)
+				{
+					throw new IllegalArgumentException(e.getKey() + "=" + e.getValue() + " isn't in the DimTable");
+				}
+				return -1;
+			}
+			key = key | ((long) (ordinal + 1) << this.shifts[d]);
+		}
+		return key;
+	}
+
+	private DimensionMap unpack(long key)
+	{
+		DimensionMap ret = new DimensionMap();
+		for (int d = 0; d < this.dims.length; d++)
+		{
+			int field = (int) ((key & this.masks[d]) >>> this.shifts[d]);
+			if(field > 0)
+			{
+				ret.put(this.dims[d], this.values[d][field - 1]);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Collects planes in any order and builds the index.
+	 */
+	public static class Builder
+	{
+		private final String[] dims;
+		private final String[][] values;
+		private final List<HashMap<String,Integer>> ordinals;
+		private final int[] shifts;
+		private final long[] masks;
+		private final PlaneIndex layout;
+
+		private long[] keys = new long[1024];
+		private int[] offsets = new int[1024];
+		private int[] lengths = new int[1024];
+		private byte[] paths = new byte[64 * 1024];
+		private int n = 0;
+		private int pathBytes = 0;
+		// Open addressing table of (first plane added with each distinct path) + 1, found by a hash of the path's bytes
+		private int[] slots = new int[1024];
+		private int distinct = 0;
+
+		public Builder(DimTable table)
+		{
+			this(dimNames(table), dimValues(table));
+		}
+
+		public Builder(String[] dims, String[][] values)
+		{
+			this.dims = dims;
+			this.values = values;
+			this.ordinals = new ArrayList<HashMap<String,Integer>>(dims.length);
+			this.shifts = new int[dims.length];
+			this.masks = new long[dims.length];
+			int shift = 0;
+			for (int d = dims.length - 1; d >= 0; d--)
+			{
+				HashMap<String,Integer> ordinal = new HashMap<String,Integer>();
+				for (int v = 0; v < values[d].length; v++)
+				{
+					ordinal.put(values[d][v], v);
+				}
+				this.ordinals.add(0, ordinal);
+				// Room for ordinal + 1 so 0 can mean the dimension is missing
+				int bits = 32 - Integer.numberOfLeadingZeros(values[d].length);
+				this.shifts[d] = shift;
+				this.masks[d] = ((1L << bits) - 1) << shift;
+				shift = shift + bits;
+			}
+			if(shift > 63)
+			{
+				throw new IllegalArgumentException("DimTable too large to pack into 63 bits (" + shift + " bits needed)");
+			}
+			this.layout = new PlaneIndex(dims, values, this.ordinals, this.shifts, this.masks, null, null, null, null);
+		}
+
+		/**
+		 * Add a plane. A later plane with the same DimensionMap replaces an earlier one.
+		 *
+		 * @throws IllegalArgumentException if map has a dimension or value that isn't in the table
+		 */
+		public void add(DimensionMap map, String path)
+		{
+			this.append(this.layout.pack(map, true), path);
+		}
+
+		/**
+		 * Same as add, but a map with a dimension or value that isn't in the table is ignored.
+		 *
+		 * @return false if the plane was ignored
+		 */
+		public boolean addIfKnown(DimensionMap map, String path)
+		{
+			long key = this.layout.pack(map, false);
+			if(key < 0)
+			{
+				return false;
+			}
+			this.append(key, path);
+			return true;
+		}
+
+		private void append(long key, String path)
+		{
+			if(this.n == this.keys.length)
+			{
+				int size = this.n * 2;
+				this.keys = Arrays.copyOf(this.keys, size);
+				this.offsets = Arrays.copyOf(this.offsets, size);
+				this.lengths = Arrays.copyOf(this.lengths, size);
+			}
+			this.keys[this.n] = key;
+			byte[] bytes = toBytes(path);
+			int slot = this.findSlot(bytes, 0, bytes.length);
+			if(this.slots[slot] != 0)
+			{
+				// Same bytes as the first plane with this path
+				int first = this.slots[slot] - 1;
+				this.offsets[this.n] = this.offsets[first];
+				this.lengths[this.n] = this.lengths[first];
+			}
+			else
+			{
+				if(this.pathBytes + bytes.length > this.paths.length)
+				{
+					this.paths = Arrays.copyOf(this.paths, Math.max(this.paths.length * 2, this.pathBytes + bytes.length));
+				}
+				System.arraycopy(bytes, 0, this.paths, this.pathBytes, bytes.length);
+				this.offsets[this.n] = this.pathBytes;
+				this.lengths[this.n] = bytes.length;
+				this.pathBytes = this.pathBytes + bytes.length;
+				this.slots[slot] = this.n + 1;
+				this.distinct = this.distinct + 1;
+				if(2 * this.distinct > this.slots.length)
+				{
+					this.growSlots();
+				}
+			}
+			this.n = this.n + 1;
+		}
+
+		public PlaneIndex build()
+		{
+			// Sort by key, keeping the last of any duplicates (planes usually arrive in order already)
+			int[] order = new int[this.n];
+			for (int i = 0; i < this.n; i++)
+			{
+				order[i] = i;
+			}
+			if(!this.isSorted())
+			{
+				mergeSort(order, new int[this.n], 0, this.n, this.keys);
+			}
+			int m = 0;
+			long[] keys = new long[this.n];
+			int[] offsets = new int[this.n];
+			int[] lengths = new int[this.n];
+			for (int j = 0; j < this.n; j++)
+			{
+				int i = order[j];
+				if(m > 0 && keys[m - 1] == this.keys[i])
+				{
+					m = m - 1;
+				}
+				keys[m] = this.keys[i];
+				offsets[m] = this.offsets[i];
+				lengths[m] = this.lengths[i];
+				m = m + 1;
+			}
+			return new PlaneIndex(this.dims, this.values, this.ordinals, this.shifts, this.masks, Arrays.copyOf(keys, m), Arrays.copyOf(offsets, m), Arrays.copyOf(lengths, m), Arrays.copyOf(this.paths, this.pathBytes));
+		}
+
+		/**
+		 * Slot holding the first plane whose path has the given bytes, or the empty slot where it would go.
+		 */
+		private int findSlot(byte[] bytes, int offset, int length)
+		{
+			int mask = this.slots.length - 1;
+			int slot = hash(bytes, offset, length) & mask;
+			while(this.slots[slot] != 0 && !this.samePath(this.slots[slot] - 1, bytes, offset, length))
+			{
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private boolean samePath(int plane, byte[] bytes, int offset, int length)
+		{
+			if(this.lengths[plane] != length)
+			{
+				return false;
+			}
+			int start = this.offsets[plane];
+			for (int i = 0; i < length; i++)
+			{
+				if(this.paths[start + i] != bytes[offset + i])
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void growSlots()
+		{
+			int[] old = this.slots;
+			this.slots = new int[old.length * 2];
+			for (int first : old)
+			{
+				if(first != 0)
+				{
+					this.slots[this.findSlot(this.paths, this.offsets[first - 1], this.lengths[first - 1])] = first;
+				}
+			}
+		}
+
+		private static int hash(byte[] bytes, int offset, int length)
+		{
+			int h = 1;
+			for (int i = offset; i < offset + length; i++)
+			{
+				h = 31 * h + bytes[i];
+			}
+			// Spread the bits so nearby paths (e.g., numbered files) don't cluster in the table
+			return h ^ (h >>> 16);
+		}
+
+		private boolean isSorted()
+		{
+			for (int i = 1; i < this.n; i++)
+			{
+				if(this.keys[i] < this.keys[i - 1])
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Stable sort of order[from, to) by keys (stable so the last added duplicate stays last).
+		 */
+		private static void mergeSort(int[] order, int[] temp, int from, int to, long[] keys)
+		{
+			if(to - from < 2)
+			{
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			mergeSort(order, temp, from, mid, keys);
+			mergeSort(order, temp, mid, to, keys);
+			int a = from, b = mid, k = from;
+			while(a < mid && b < to)
+			{
+				temp[k++] = (keys[order[b]] < keys[order[a]]) ? order[b++] : order[a++];
+			}
+			while(a < mid)
+			{
+				temp[k++] = order[a++];
+			}
+			while(b < to)
+			{
+				temp[k++] = order[b++];
+			}
+			System.arraycopy(temp, from, order, from, to - from);
+		}
+
+		private static String[] dimNames(DimTable table)
+		{
+			String[] ret = new String[table.size()];
+			for (int d = 0; d < ret.length; d++)
+			{
+				ret[d] = table.get(d).dimName;
+			}
+			return ret;
+		}
+
+		private static String[][] dimValues(DimTable table)
+		{
+			String[][] ret = new String[table.size()][];
+			for (int d = 0; d < ret.length; d++)
+			{
+				Dim dim = table.get(d);
+				ret[d] = dim.dimValues.toArray(new String[dim.dimValues.size()]);
+			}
+			return ret;
+		}
+
+		private static byte[] toBytes(String s)
+		{
+			try
+			{
+				return s.getBytes("UTF-8");
+			}
+			catch (UnsupportedEncodingException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,297 @@
+package plugins;
+
+import java.io.File;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import logs.Logs;
+import tables.DimensionMap;
+import function.plugin.mechanism.JEXPlugin;
+
+/**
+ * Runs the read / process / write stages of a per-plane plugin over an image table with whichever execution options
+ * the plugin exposes: threads, the prefetching pipeline, metrics, and the result cache. Plugins describe their work once
+ * as PlanePipeline.Stages and hand the options through here instead of wiring each one into their own run method.
+ *
+ * @param <I> the type produced by the read stage
+ * @param <O> the type produced by the process stage
+ */
+public class PlaneJob<I,O> {
+
+	private final JEXPlugin plugin;
+	private final PlanePipeline.Stages<I,O> stages;
+	private int planeThreads = 1;
+	private int prefetch = 0;
+	private PluginMetrics metrics = null;
+	private File metricsFolder = null;
+	private ResultCache cache = null;
+	private String fingerprint = null;
+	private String outputExtension = "tif";
+	private IncrementalManifest manifest = null;
+	private TreeMap<DimensionMap,String> previousOutputs = null;
+	private OutputJournal journal = null;
+	private File checkpointFolder = null;
+	private String checkpointFingerprint = null;
+
+	public PlaneJob(JEXPlugin plugin, PlanePipeline.Stages<I,O> stages)
+	{
+		this.plugin = plugin;
+		this.stages = stages;
+	}
+
+	/**
+	 * @param planeThreads number of planes to process at once, or PlaneScheduler.SHARED to use the pool shared by all
+	 *            entries (the pipeline isn't used in that case)
+	 * @param prefetch capacity of the pipeline queues (0 runs without the pipeline)
+	 */
+	public void setThreads(int planeThreads, int prefetch)
+	{
+		this.planeThreads = Math.max(PlaneScheduler.SHARED, planeThreads);
+		this.prefetch = prefetch;
+	}
+
+	/**
+	 * Metrics are logged at the end of the run and saved to folder unless it is blank.
+	 */
+	public void setMetrics(PluginMetrics metrics, String folder)
+	{
+		this.metrics = metrics;
+		this.metricsFolder = isBlank(folder) ? null : new File(folder);
+	}
+
+	/**
+	 * Reuse results from the cache in folder (no caching if blank).
+	 *
+	 * @param sizeGB size limit of the cache folder in GB
+	 * @param fingerprint description of every parameter that affects the output (see ParameterFingerprint)
+	 */
+	public void setCache(String folder, double sizeGB, String fingerprint)
+	{
+		if(isBlank(folder))
+		{
+			this.cache = null;
+			return;
+		}
+		this.cache = new ResultCache(new File(folder), (long) (sizeGB * 1024 * 1024 * 1024));
+		this.fingerprint = fingerprint;
+	}
+
+	/**
+	 * Only process planes that are new or changed since the run recorded in manifest, reusing previousOutputs (the
+	 * output table of that run) for the rest. The manifest is updated when the run completes.
+	 */
+	public void setIncremental(IncrementalManifest manifest, TreeMap<DimensionMap,String> previousOutputs)
+	{
+		this.manifest = manifest;
+		this.previousOutputs = previousOutputs;
+	}
+
+	/**
+	 * Checkpoint the run in folder (no checkpoint if blank): completed planes are journaled as they finish, and a
+	 * restart with the same input files and fingerprint skips them. The checkpoint is deleted once the run completes.
+	 * Planes whose journaled output JEX has since removed from its temp folder are computed again.
+	 *
+	 * @param fingerprint description of every parameter that affects the output (see ParameterFingerprint)
+	 */
+	public void setCheckpoint(String folder, String fingerprint)
+	{
+		this.checkpointFolder = isBlank(folder) ? null : new File(folder);
+		this.checkpointFingerprint = fingerprint;
+	}
+
+	/**
+	 * Extension of the files written by the write stage (used to find cached results).
+	 */
+	public void setOutputExtension(String ext)
+	{
+		this.outputExtension = ext;
+	}
+
+	/**
+	 * Process every plane of inputMap.
+	 *
+	 * @return output paths in DimensionMap order or null if canceled
+	 */
+	public TreeMap<DimensionMap,String> run(TreeMap<DimensionMap,String> inputMap)
+	{
+		TreeMap<DimensionMap,String> toProcess = inputMap;
+		TreeMap<DimensionMap,String> outputMap = new TreeMap<DimensionMap,String>();
+		PlanePipeline.Stages<I,O> stages = this.stages;
+		ConcurrentHashMap<DimensionMap,String> keys = null;
+
+		if(this.checkpointFolder != null)
+		{
+			this.journal = OutputJournal.forInputs(this.checkpointFolder, this.plugin, inputMap, this.checkpointFingerprint);
+		}
+
+		// Pick up where an earlier run of this journal stopped
+		if(this.journal != null)
+		{
+			TreeMap<DimensionMap,String> registered = this.journal.read();
+			toProcess = new TreeMap<DimensionMap,String>();
+			for (DimensionMap map : inputMap.keySet())
+			{
+				if(registered.containsKey(map))
+				{
+					outputMap.put(map, registered.get(map));
+				}
+				else
+				{
+					toProcess.put(map, inputMap.get(map));
+				}
+			}
+			if(outputMap.size() > 0)
+			{
+				Logs.log("Resuming from " + this.journal.getFile().getPath() + ": " + outputMap.size() + " planes already done, " + toProcess.size() + " to go.", this.plugin);
+			}
+		}
+
+		// Carry over the previous outputs of planes that haven't changed
+		if(this.manifest != null)
+		{
+			TreeMap<DimensionMap,String> remaining = toProcess;
+			toProcess = new TreeMap<DimensionMap,String>();
+			TreeMap<DimensionMap,String> unchanged = this.manifest.split(remaining, this.previousOutputs, toProcess);
+			for (DimensionMap map : unchanged.keySet())
+			{
+				this.register(outputMap, map, FileTransfer.shareFile(new File(unchanged.get(map))));
+			}
+			Logs.log("Incremental run: reusing " + unchanged.size() + " unchanged planes, processing " + toProcess.size() + " new or changed planes.", this.plugin);
+		}
+
+		// Reuse cached results where we can
+		if(this.cache != null)
+		{
+			keys = new ConcurrentHashMap<DimensionMap,String>();
+			TreeMap<DimensionMap,String> remaining = toProcess;
+			toProcess = new TreeMap<DimensionMap,String>();
+			TreeMap<DimensionMap,String> cached = this.cache.lookup(this.plugin, remaining, this.fingerprint, this.outputExtension, this.planeThreads, toProcess, keys);
+			if(cached == null)
+			{
+				this.closeJournal();
+				return null;
+			}
+			for (DimensionMap map : cached.keySet())
+			{
+				this.register(outputMap, map, cached.get(map));
+			}
+		}
+		if(this.cache != null || this.journal != null)
+		{
+			stages = new RecordingStages(this.stages, keys);
+		}
+
+		TreeMap<DimensionMap,String> computed;
+		if(this.prefetch > 0 && this.planeThreads != PlaneScheduler.SHARED)
+		{
+			// Overlap reading and writing with the computation
+			int ioThreads = Math.max(1, this.planeThreads / 2);
+			PlanePipeline<I,O> pipeline = new PlanePipeline<I,O>(this.plugin, ioThreads, this.planeThreads, ioThreads, this.prefetch);
+			pipeline.setMetrics(this.metrics);
+			computed = pipeline.run(toProcess, stages);
+		}
+		else
+		{
+			PlaneExecutor executor = new PlaneExecutor(this.plugin, this.planeThreads);
+			computed = executor.run(toProcess, PlaneExecutor.toTask(stages));
+		}
+
+		// Report how the time was spent
+		if(this.metrics != null)
+		{
+			this.metrics.log(this.plugin);
+			if(this.metricsFolder != null)
+			{
+				this.metrics.save(this.metricsFolder);
+			}
+		}
+		if(this.cache != null)
+		{
+			this.cache.log(this.plugin);
+		}
+
+		this.closeJournal();
+		if(computed == null)
+		{
+			return null;
+		}
+		outputMap.putAll(computed);
+		if(this.manifest != null)
+		{
+			this.manifest.save(inputMap);
+		}
+		if(this.checkpointFolder != null)
+		{
+			// Nothing left to resume
+			this.journal.delete();
+		}
+		return outputMap;
+	}
+
+	private void register(TreeMap<DimensionMap,String> outputMap, DimensionMap map, String path)
+	{
+		outputMap.put(map, path);
+		if(this.journal != null)
+		{
+			this.journal.append(map, path);
+		}
+	}
+
+	private void closeJournal()
+	{
+		if(this.journal != null)
+		{
+			this.journal.close();
+		}
+	}
+
+	private static boolean isBlank(String s)
+	{
+		return s == null || s.trim().equals("");
+	}
+
+	/**
+	 * Stores each written result in the cache and registers it in the journal.
+	 */
+	private class RecordingStages implements PlanePipeline.Stages<I,O>
+	{
+		private final PlanePipeline.Stages<I,O> inner;
+		private final ConcurrentHashMap<DimensionMap,String> keys;
+
+		/**
+		 * @param keys cache keys of the planes (null without a cache)
+		 */
+		RecordingStages(PlanePipeline.Stages<I,O> inner, ConcurrentHashMap<DimensionMap,String> keys)
+		{
+			this.inner = inner;
+			this.keys = keys;
+		}
+
+		@Override
+		public I read(DimensionMap map, String path) throws Exception
+		{
+			return this.inner.read(map, path);
+		}
+
+		@Override
+		public O process(DimensionMap map, I input) throws Exception
+		{
+			return this.inner.process(map, input);
+		}
+
+		@Override
+		public String write(DimensionMap map, O output) throws Exception
+		{
+			String path = this.inner.write(map, output);
+			if(PlaneJob.this.cache != null)
+			{
+				PlaneJob.this.cache.put(this.keys.get(map), path);
+			}
+			if(PlaneJob.this.journal != null)
+			{
+				PlaneJob.this.journal.append(map, path);
+			}
+			return path;
+		}
+	}
+}
@@ -0,0 +1,11 @@
+package plugins;
+
+/**
+ * Declares that a plugin's per-plane work can run on any thread at the same time as its other planes and the planes of
+ * other entries (no shared mutable state between planes). Only plugins that implement it have their planes spread
+ * over the shared PlaneScheduler; the rest run their planes one at a time when asked to share.
+ *
+ */
+public interface PlaneParallelSafe {
+
+}
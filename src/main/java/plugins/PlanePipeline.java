@@ -0,0 +1,467 @@
+package plugins;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import logs.Logs;
+import tables.DimensionMap;
+import function.plugin.mechanism.JEXPlugin;
+
+/**
+ * Three stage read / process / write pipeline for per-plane plugins. Reader threads load upcoming planes into a bounded
+ * queue, worker threads compute and pass their results through a second bounded queue to the writer threads. Because
+ * both queues are bounded, readers block once the workers fall behind (and workers block once the writers fall
+ * behind), so at most about 2 * capacity planes are held in memory while disk I/O overlaps with compute.
+ *
+ * Results are returned in DimensionMap order just like PlaneExecutor.
+ *
+ * An Error in any stage (e.g., an OutOfMemoryError) stops the whole pipeline as a cancel would, and planes left in the
+ * queues are released (processors back to the shared PixelBufferPool, images flushed).
+ *
+ * @param <I> the type produced by the read stage (e.g., ImagePlus)
+ * @param <O> the type produced by the process stage (e.g., ImageProcessor)
+ */
+public class PlanePipeline<I,O> {
+
+	/**
+	 * The three stages of work for a plane. Each may be called from several threads at once.
+	 */
+	public interface Stages<I,O>
+	{
+		/**
+		 * Load the plane at path, or return null to skip it.
+		 */
+		public I read(DimensionMap map, String path) throws Exception;
+
+		/**
+		 * Compute the result for a loaded plane, or return null to skip it.
+		 */
+		public O process(DimensionMap map, I input) throws Exception;
+
+		/**
+		 * Save the result and return its path, or null if nothing was saved.
+		 */
+		public String write(DimensionMap map, O output) throws Exception;
+	}
+
+	private final JEXPlugin plugin;
+	private final int nReaders, nWorkers, nWriters, capacity;
+
+	private BlockingQueue<Item<I>> readQueue;
+	private BlockingQueue<Item<O>> writeQueue;
+	private final AtomicInteger maxReadQueueDepth = new AtomicInteger(0);
+	private final AtomicInteger maxWriteQueueDepth = new AtomicInteger(0);
+	private ProgressReporter progress = null;
+	private final AtomicBoolean stopped = new AtomicBoolean(false);
+	private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>(null);
+	private PluginMetrics metrics = null;
+
+	public PlanePipeline(JEXPlugin plugin, int nReaders, int nWorkers, int nWriters, int capacity)
+	{
+		this.plugin = plugin;
+		this.nReaders = Math.max(1, nReaders);
+		this.nWorkers = Math.max(1, nWorkers);
+		this.nWriters = Math.max(1, nWriters);
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Record the time each plane spends waiting in the queues between stages.
+	 */
+	public void setMetrics(PluginMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Number of loaded planes currently waiting for a worker.
+	 */
+	public int getReadQueueDepth()
+	{
+		return this.readQueue == null ? 0 : this.readQueue.size();
+	}
+
+	/**
+	 * Number of computed planes currently waiting for a writer.
+	 */
+	public int getWriteQueueDepth()
+	{
+		return this.writeQueue == null ? 0 : this.writeQueue.size();
+	}
+
+	public int getMaxReadQueueDepth()
+	{
+		return this.maxReadQueueDepth.get();
+	}
+
+	public int getMaxWriteQueueDepth()
+	{
+		return this.maxWriteQueueDepth.get();
+	}
+
+	/**
+	 * Push every plane of inputMap through the pipeline.
+	 *
+	 * @return the written paths sorted by DimensionMap, or null if the plugin was canceled or a stage failed
+	 */
+	public TreeMap<DimensionMap,String> run(TreeMap<DimensionMap,String> inputMap, Stages<I,O> stages)
+	{
+		this.readQueue = new ArrayBlockingQueue<Item<I>>(this.capacity);
+		this.writeQueue = new ArrayBlockingQueue<Item<O>>(this.capacity);
+		this.maxReadQueueDepth.set(0);
+		this.maxWriteQueueDepth.set(0);
+		this.progress = new ProgressReporter(this.plugin, inputMap.size());
+		this.stopped.set(false);
+		this.failure.set(null);
+
+		TreeMap<DimensionMap,String> outputMap = new TreeMap<DimensionMap,String>();
+		Iterator<Entry<DimensionMap,String>> source = inputMap.entrySet().iterator();
+		AtomicInteger readersLeft = new AtomicInteger(this.nReaders);
+		AtomicInteger workersLeft = new AtomicInteger(this.nWorkers);
+		CountDownLatch writersDone = new CountDownLatch(this.nWriters);
+
+		Vector<Thread> threads = new Vector<Thread>();
+		for (int i = 0; i < this.nReaders; i++)
+		{
+			threads.add(new Thread(new Reader(source, stages, readersLeft), "PlanePipeline-read-" + i));
+		}
+		for (int i = 0; i < this.nWorkers; i++)
+		{
+			threads.add(new Thread(new Worker(stages, workersLeft), "PlanePipeline-process-" + i));
+		}
+		for (int i = 0; i < this.nWriters; i++)
+		{
+			threads.add(new Thread(new Writer(stages, outputMap, writersDone), "PlanePipeline-write-" + i));
+		}
+		for (Thread t : threads)
+		{
+			t.setDaemon(true);
+			t.start();
+		}
+
+		try
+		{
+			while(!writersDone.await(100, TimeUnit.MILLISECONDS))
+			{
+				if(this.plugin.isCanceled() || this.failure.get() != null)
+				{
+					this.stop(threads);
+					return null;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			this.stop(threads);
+			return null;
+		}
+
+		this.progress.finish();
+		Logs.log("Pipeline finished " + inputMap.size() + " planes. Max queue depth (read, write) = (" + this.getMaxReadQueueDepth() + ", " + this.getMaxWriteQueueDepth() + ") of " + this.capacity + ".", this);
+		return outputMap;
+	}
+
+	private void stop(Vector<Thread> threads)
+	{
+		this.stopped.set(true);
+		for (Thread t : threads)
+		{
+			t.interrupt();
+		}
+		this.drain();
+		this.progress.finish();
+	}
+
+	/**
+	 * Stop every stage because of an error that escaped a stage's own handling.
+	 */
+	private void fail(Throwable t)
+	{
+		if(this.failure.compareAndSet(null, t))
+		{
+			t.printStackTrace();
+			Logs.log("Pipeline stopped: " + t, this);
+		}
+		this.stopped.set(true);
+	}
+
+	/**
+	 * Release the planes still waiting in the queues.
+	 */
+	private void drain()
+	{
+		Item<I> read;
+		while((read = this.readQueue.poll()) != null)
+		{
+			discard(read.value);
+		}
+		Item<O> written;
+		while((written = this.writeQueue.poll()) != null)
+		{
+			discard(written.value);
+		}
+	}
+
+	private static void discard(Object value)
+	{
+		if(value instanceof ImageProcessor)
+		{
+			PixelBufferPool.getShared().release((ImageProcessor) value);
+		}
+		else if(value instanceof ImagePlus)
+		{
+			((ImagePlus) value).flush();
+		}
+	}
+
+	private void queueWait(Item<?> item)
+	{
+		if(this.metrics != null)
+		{
+			this.metrics.queueWait(item.map, item.queued);
+		}
+	}
+
+	private static void updateMax(AtomicInteger max, int value)
+	{
+		int current = max.get();
+		while(value > current && !max.compareAndSet(current, value))
+		{
+			current = max.get();
+		}
+	}
+
+	/**
+	 * A plane moving through the pipeline. A null map marks the end of the stream.
+	 */
+	private static class Item<T>
+	{
+		final DimensionMap map;
+		final T value;
+		final long queued = System.nanoTime();
+
+		Item(DimensionMap map, T value)
+		{
+			this.map = map;
+			this.value = value;
+		}
+
+		boolean isEnd()
+		{
+			return this.map == null;
+		}
+	}
+
+	private class Reader implements Runnable
+	{
+		private final Iterator<Entry<DimensionMap,String>> source;
+		private final Stages<I,O> stages;
+		private final AtomicInteger left;
+
+		Reader(Iterator<Entry<DimensionMap,String>> source, Stages<I,O> stages, AtomicInteger left)
+		{
+			this.source = source;
+			this.stages = stages;
+			this.left = left;
+		}
+
+		private Entry<DimensionMap,String> next()
+		{
+			synchronized(this.source)
+			{
+				return this.source.hasNext() ? this.source.next() : null;
+			}
+		}
+
+		@Override
+		public void run()
+		{
+			I input = null;
+			try
+			{
+				Entry<DimensionMap,String> e;
+				while(!PlanePipeline.this.stopped.get() && (e = this.next()) != null)
+				{
+					try
+					{
+						input = this.stages.read(e.getKey(), e.getValue());
+					}
+					catch (Exception ex)
+					{
+						ex.printStackTrace();
+					}
+					// Blocks while the workers are behind
+					PlanePipeline.this.readQueue.put(new Item<I>(e.getKey(), input));
+					input = null;
+					updateMax(PlanePipeline.this.maxReadQueueDepth, PlanePipeline.this.readQueue.size());
+				}
+				// The last one out tells the next stage that the stream has ended
+				if(this.left.decrementAndGet() == 0)
+				{
+					for (int i = 0; i < PlanePipeline.this.nWorkers; i++)
+					{
+						PlanePipeline.this.readQueue.put(new Item<I>(null, null));
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				// Canceled
+			}
+			catch (Throwable t)
+			{
+				PlanePipeline.this.fail(t);
+			}
+			finally
+			{
+				// Nobody else will release what this thread was holding or queued after the pipeline stopped
+				if(PlanePipeline.this.stopped.get())
+				{
+					discard(input);
+					PlanePipeline.this.drain();
+				}
+			}
+		}
+	}
+
+	private class Worker implements Runnable
+	{
+		private final Stages<I,O> stages;
+		private final AtomicInteger left;
+
+		Worker(Stages<I,O> stages, AtomicInteger left)
+		{
+			this.stages = stages;
+			this.left = left;
+		}
+
+		@Override
+		public void run()
+		{
+			O output = null;
+			try
+			{
+				Item<I> item;
+				while(!(item = PlanePipeline.this.readQueue.take()).isEnd())
+				{
+					PlanePipeline.this.queueWait(item);
+					if(item.value != null)
+					{
+						try
+						{
+							output = this.stages.process(item.map, item.value);
+						}
+						catch (Exception ex)
+						{
+							ex.printStackTrace();
+						}
+					}
+					// Blocks while the writers are behind
+					PlanePipeline.this.writeQueue.put(new Item<O>(item.map, output));
+					output = null;
+					updateMax(PlanePipeline.this.maxWriteQueueDepth, PlanePipeline.this.writeQueue.size());
+				}
+				// The last one out tells the next stage that the stream has ended
+				if(this.left.decrementAndGet() == 0)
+				{
+					for (int i = 0; i < PlanePipeline.this.nWriters; i++)
+					{
+						PlanePipeline.this.writeQueue.put(new Item<O>(null, null));
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				// Canceled
+			}
+			catch (Throwable t)
+			{
+				PlanePipeline.this.fail(t);
+			}
+			finally
+			{
+				if(PlanePipeline.this.stopped.get())
+				{
+					discard(output);
+					PlanePipeline.this.drain();
+				}
+			}
+		}
+	}
+
+	private class Writer implements Runnable
+	{
+		private final Stages<I,O> stages;
+		private final TreeMap<DimensionMap,String> outputMap;
+		private final CountDownLatch done;
+
+		Writer(Stages<I,O> stages, TreeMap<DimensionMap,String> outputMap, CountDownLatch done)
+		{
+			this.stages = stages;
+			this.outputMap = outputMap;
+			this.done = done;
+		}
+
+		@Override
+		public void run()
+		{
+			try
+			{
+				Item<O> item;
+				while(!(item = PlanePipeline.this.writeQueue.take()).isEnd())
+				{
+					PlanePipeline.this.queueWait(item);
+					String path = null;
+					if(item.value != null)
+					{
+						try
+						{
+							path = this.stages.write(item.map, item.value);
+						}
+						catch (Exception ex)
+						{
+							ex.printStackTrace();
+						}
+					}
+					if(path != null)
+					{
+						synchronized(this.outputMap)
+						{
+							this.outputMap.put(item.map, path);
+						}
+					}
+					PlanePipeline.this.progress.planeFinished();
+				}
+				this.done.countDown();
+			}
+			catch (InterruptedException e)
+			{
+				// Canceled
+			}
+			catch (Throwable t)
+			{
+				PlanePipeline.this.fail(t);
+			}
+			finally
+			{
+				if(PlanePipeline.this.stopped.get())
+				{
+					PlanePipeline.this.drain();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,58 @@
+package plugins;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+/**
+ * One work-stealing pool, sized to the number of processors, that takes the plane tasks of every entry a plugin is
+ * running on. JEX runs up to getMaxThreads() entries at once; when each of them also starts its own plane threads a
+ * few large entries leave cores idle and many small entries oversubscribe them. Sending the planes of all entries to
+ * this pool keeps the processors busy either way. Each entry still collects its own results in DimensionMap order.
+ *
+ * Plugins opt in with PlaneParallelSafe and a "Plane Threads" setting of SHARED (see PlaneExecutor).
+ *
+ */
+public class PlaneScheduler {
+
+	/**
+	 * Plane thread count that means "use the shared scheduler".
+	 */
+	public static final int SHARED = 0;
+
+	private static ForkJoinPool pool = null;
+
+	/**
+	 * The shared pool, created on first use. Its threads are daemons so they never keep JEX from exiting.
+	 */
+	public static synchronized ForkJoinPool getPool()
+	{
+		if(pool == null)
+		{
+			pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), new ForkJoinPool.ForkJoinWorkerThreadFactory(){
+				@Override
+				public ForkJoinWorkerThread newThread(ForkJoinPool p)
+				{
+					ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+					t.setName("PlaneScheduler-" + t.getPoolIndex());
+					t.setDaemon(true);
+					return t;
+				}
+			}, null, true);
+		}
+		return pool;
+	}
+
+	/**
+	 * True on the shared pool's own threads, which must not wait on more shared work (planes started from there run
+	 * one at a time instead).
+	 */
+	public static boolean isSchedulerThread()
+	{
+		return Thread.currentThread() instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) Thread.currentThread()).getPool() == pool;
+	}
+
+	public static int getParallelism()
+	{
+		return getPool().getParallelism();
+	}
+}
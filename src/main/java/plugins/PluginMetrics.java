@@ -0,0 +1,376 @@
+package plugins;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import logs.Logs;
+import tables.DimensionMap;
+
+/**
+ * Execution metrics for a plugin run: per-plane read, compute, write, and queue wait times collected into log-linear
+ * (HDR style) histograms, bytes read and written, and the peak heap seen while the run was active. Safe to use from
+ * many threads at once. A summary can be written as JSON and the per-plane timings as CSV at the end of the run.
+ *
+ * Typical use inside a per-plane loop:
+ *
+ * <pre>
+ * long t = metrics.start();
+ * ImagePlus im = new ImagePlus(path);
+ * metrics.read(map, path, t);
+ * </pre>
+ *
+ */
+public class PluginMetrics {
+
+	public static final String READ = "read", COMPUTE = "compute", WRITE = "write", QUEUE = "queue";
+
+	/**
+	 * Description of every "Metrics Folder" parameter.
+	 */
+	public static final String FOLDER_DESCRIPTION = "Folder in which to save per-plane timings (csv) and a run summary (json). Leave blank to only log the summary.";
+
+	private static final AtomicLong runCount = new AtomicLong(0);
+
+	private final String name;
+	private final long id = runCount.incrementAndGet();
+	private final long startTime = System.currentTimeMillis();
+	private final ConcurrentHashMap<String,Histogram> histograms = new ConcurrentHashMap<String,Histogram>();
+	private final ConcurrentHashMap<DimensionMap,long[]> planeTimes = new ConcurrentHashMap<DimensionMap,long[]>();
+	private final AtomicLong bytesRead = new AtomicLong(0);
+	private final AtomicLong bytesWritten = new AtomicLong(0);
+	private final AtomicLong peakHeap = new AtomicLong(0);
+
+	public PluginMetrics(String name)
+	{
+		this.name = name;
+		this.sampleHeap();
+	}
+
+	/**
+	 * Returns a timestamp to pass to one of the record methods.
+	 */
+	public long start()
+	{
+		return System.nanoTime();
+	}
+
+	/**
+	 * Record the time spent reading the plane at path (and its size).
+	 */
+	public void read(DimensionMap map, String path, long startNanos)
+	{
+		this.record(map, READ, startNanos);
+		if(path != null)
+		{
+			this.bytesRead.addAndGet(new File(path).length());
+		}
+	}
+
+	public void compute(DimensionMap map, long startNanos)
+	{
+		this.record(map, COMPUTE, startNanos);
+	}
+
+	/**
+	 * Record the time spent writing a plane to path (and its size).
+	 */
+	public void write(DimensionMap map, String path, long startNanos)
+	{
+		this.record(map, WRITE, startNanos);
+		if(path != null)
+		{
+			this.bytesWritten.addAndGet(new File(path).length());
+		}
+	}
+
+	/**
+	 * Record time a plane spent waiting in a queue between stages.
+	 */
+	public void queueWait(DimensionMap map, long startNanos)
+	{
+		this.record(map, QUEUE, startNanos);
+	}
+
+	/**
+	 * Record the time since startNanos for the given stage.
+	 */
+	public void record(DimensionMap map, String stage, long startNanos)
+	{
+		long nanos = System.nanoTime() - startNanos;
+		Histogram h = this.histograms.get(stage);
+		if(h == null)
+		{
+			this.histograms.putIfAbsent(stage, new Histogram());
+			h = this.histograms.get(stage);
+		}
+		h.record(nanos);
+		if(map != null)
+		{
+			long[] times = this.planeTimes.get(map);
+			if(times == null)
+			{
+				this.planeTimes.putIfAbsent(map, new long[4]);
+				times = this.planeTimes.get(map);
+			}
+			synchronized(times)
+			{
+				times[stageIndex(stage)] += nanos;
+			}
+		}
+		this.sampleHeap();
+	}
+
+	public void sampleHeap()
+	{
+		Runtime rt = Runtime.getRuntime();
+		long used = rt.totalMemory() - rt.freeMemory();
+		long current = this.peakHeap.get();
+		while(used > current && !this.peakHeap.compareAndSet(current, used))
+		{
+			current = this.peakHeap.get();
+		}
+	}
+
+	public long getBytesRead()
+	{
+		return this.bytesRead.get();
+	}
+
+	public long getBytesWritten()
+	{
+		return this.bytesWritten.get();
+	}
+
+	public long getPeakHeap()
+	{
+		return this.peakHeap.get();
+	}
+
+	public Histogram getHistogram(String stage)
+	{
+		return this.histograms.get(stage);
+	}
+
+	private static int stageIndex(String stage)
+	{
+		if(READ.equals(stage))
+		{
+			return 0;
+		}
+		if(COMPUTE.equals(stage))
+		{
+			return 1;
+		}
+		if(WRITE.equals(stage))
+		{
+			return 2;
+		}
+		return 3;
+	}
+
+	/**
+	 * Summary of the run as a JSON object.
+	 */
+	public String toJSON()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"plugin\": \"").append(this.name.replace("\"", "'")).append("\",\n");
+		sb.append("  \"elapsedMillis\": ").append(System.currentTimeMillis() - this.startTime).append(",\n");
+		sb.append("  \"planes\": ").append(this.planeTimes.size()).append(",\n");
+		sb.append("  \"bytesRead\": ").append(this.bytesRead.get()).append(",\n");
+		sb.append("  \"bytesWritten\": ").append(this.bytesWritten.get()).append(",\n");
+		sb.append("  \"peakHeapBytes\": ").append(this.peakHeap.get()).append(",\n");
+		sb.append("  \"stages\": {");
+		boolean first = true;
+		for (Entry<String,Histogram> e : new TreeMap<String,Histogram>(this.histograms).entrySet())
+		{
+			Histogram h = e.getValue();
+			sb.append(first ? "\n" : ",\n");
+			sb.append("    \"").append(e.getKey()).append("\": {");
+			sb.append("\"count\": ").append(h.getCount());
+			sb.append(", \"meanMillis\": ").append(toMillis(h.getMean()));
+			sb.append(", \"p50Millis\": ").append(toMillis(h.getPercentile(50)));
+			sb.append(", \"p90Millis\": ").append(toMillis(h.getPercentile(90)));
+			sb.append(", \"p99Millis\": ").append(toMillis(h.getPercentile(99)));
+			sb.append(", \"maxMillis\": ").append(toMillis(h.getMax()));
+			sb.append("}");
+			first = false;
+		}
+		sb.append("\n  }\n}\n");
+		return sb.toString();
+	}
+
+	/**
+	 * Per-plane timings (milliseconds) as CSV.
+	 */
+	public String toCSV()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("DimensionMap,read,compute,write,queue\n");
+		for (Entry<DimensionMap,long[]> e : new TreeMap<DimensionMap,long[]>(this.planeTimes).entrySet())
+		{
+			long[] times = e.getValue();
+			sb.append("\"").append(e.getKey().toString()).append("\"");
+			synchronized(times)
+			{
+				for (long t : times)
+				{
+					sb.append(",").append(toMillis(t));
+				}
+			}
+			sb.append("\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Write a .json summary and a .csv of per-plane timings to the folder, named after the plugin and start time.
+	 */
+	public void save(File folder)
+	{
+		folder.mkdirs();
+		String fileName = this.name.replaceAll("[^A-Za-z0-9_\\-]", "_") + "_" + this.startTime + "_" + this.id;
+		try
+		{
+			writeString(new File(folder, fileName + ".json"), this.toJSON());
+			writeString(new File(folder, fileName + ".csv"), this.toCSV());
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Log a one line summary.
+	 */
+	public void log(Object source)
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append(this.name).append(": ").append(this.planeTimes.size()).append(" planes in ").append(System.currentTimeMillis() - this.startTime).append(" ms");
+		for (Entry<String,Histogram> e : new TreeMap<String,Histogram>(this.histograms).entrySet())
+		{
+			sb.append(", ").append(e.getKey()).append(" p50/p99 = ").append(toMillis(e.getValue().getPercentile(50))).append("/").append(toMillis(e.getValue().getPercentile(99))).append(" ms");
+		}
+		sb.append(", read ").append(this.bytesRead.get() / 1024).append(" kB, wrote ").append(this.bytesWritten.get() / 1024).append(" kB, peak heap ").append(this.peakHeap.get() / (1024 * 1024)).append(" MB");
+		Logs.log(sb.toString(), source);
+	}
+
+	private static void writeString(File f, String s) throws IOException
+	{
+		Writer w = new FileWriter(f);
+		try
+		{
+			w.write(s);
+		}
+		finally
+		{
+			w.close();
+		}
+	}
+
+	private static double toMillis(double nanos)
+	{
+		return Math.round(nanos / 1000.0) / 1000.0;
+	}
+
+	/**
+	 * Log-linear histogram of durations in nanoseconds. Values are grouped by their power of two and then split into 16
+	 * linear sub-buckets, so every recorded value is kept to within about 6% regardless of its magnitude, in a fixed
+	 * amount of memory.
+	 */
+	public static class Histogram
+	{
+		private static final int SUB_BITS = 4;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+		private final AtomicLong count = new AtomicLong(0);
+		private final AtomicLong total = new AtomicLong(0);
+		private final AtomicLong max = new AtomicLong(0);
+
+		public void record(long value)
+		{
+			if(value < 0)
+			{
+				value = 0;
+			}
+			this.counts.incrementAndGet(index(value));
+			this.count.incrementAndGet();
+			this.total.addAndGet(value);
+			long current = this.max.get();
+			while(value > current && !this.max.compareAndSet(current, value))
+			{
+				current = this.max.get();
+			}
+		}
+
+		private static int index(long value)
+		{
+			if(value < SUB_BUCKETS)
+			{
+				return (int) value;
+			}
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+		}
+
+		private static long lowerBound(int index)
+		{
+			if(index < SUB_BUCKETS)
+			{
+				return index;
+			}
+			int exponent = index / SUB_BUCKETS + SUB_BITS - 1;
+			int sub = index % SUB_BUCKETS;
+			return (1L << exponent) + ((long) sub << (exponent - SUB_BITS));
+		}
+
+		public long getCount()
+		{
+			return this.count.get();
+		}
+
+		public double getMean()
+		{
+			long n = this.count.get();
+			return n == 0 ? 0 : ((double) this.total.get()) / n;
+		}
+
+		public long getMax()
+		{
+			return this.max.get();
+		}
+
+		/**
+		 * Approximate value below which the given percentage of recorded values fall.
+		 */
+		public long getPercentile(double percentile)
+		{
+			long n = this.count.get();
+			if(n == 0)
+			{
+				return 0;
+			}
+			long target = (long) Math.ceil(n * percentile / 100.0);
+			long seen = 0;
+			for (int i = 0; i < this.counts.length(); i++)
+			{
+				seen = seen + this.counts.get(i);
+				if(seen >= target)
+				{
+					return Math.min(lowerBound(i), this.max.get());
+				}
+			}
+			return this.max.get();
+		}
+	}
+}
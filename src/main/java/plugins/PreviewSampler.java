@@ -0,0 +1,170 @@
+package plugins;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+
+import logs.Logs;
+import tables.DimensionMap;
+
+/**
+ * Picks a small, representative part of an image for a quick preview of a plugin's parameters: the first, middle, and
+ * last value of each dimension (e.g., Time and Color) at a reduced resolution. Once the preview looks right the same
+ * parameters can be used for the full run.
+ *
+ */
+public class PreviewSampler {
+
+	/**
+	 * Most planes in a preview (three values of each of three dimensions).
+	 */
+	public static final int MAX_PLANES = 27;
+
+	/**
+	 * Description of every "Preview Scale" parameter.
+	 */
+	public static final String SCALE_DESCRIPTION = "Size of the preview planes relative to the originals (0-1)";
+
+	/**
+	 * Planes whose value of every dimension is the first, middle, or last value of that dimension, thinned evenly to at
+	 * most maxPlanes.
+	 */
+	public static TreeMap<DimensionMap,String> sample(TreeMap<DimensionMap,String> imageMap, int maxPlanes)
+	{
+		// Distinct values of each dimension
+		TreeMap<String,Set<String>> values = new TreeMap<String,Set<String>>();
+		for (DimensionMap map : imageMap.keySet())
+		{
+			for (Entry<String,String> e : map.entrySet())
+			{
+				Set<String> set = values.get(e.getKey());
+				if(set == null)
+				{
+					set = new HashSet<String>();
+					values.put(e.getKey(), set);
+				}
+				set.add(e.getValue());
+			}
+		}
+
+		// First, middle, and last of each
+		TreeMap<String,Set<String>> chosen = new TreeMap<String,Set<String>>();
+		for (Entry<String,Set<String>> e : values.entrySet())
+		{
+			List<String> sorted = sortValues(e.getValue());
+			Set<String> picks = new HashSet<String>();
+			picks.add(sorted.get(0));
+			picks.add(sorted.get(sorted.size() / 2));
+			picks.add(sorted.get(sorted.size() - 1));
+			chosen.put(e.getKey(), picks);
+		}
+
+		List<DimensionMap> keys = new ArrayList<DimensionMap>();
+		for (DimensionMap map : imageMap.keySet())
+		{
+			boolean keep = true;
+			for (Entry<String,String> e : map.entrySet())
+			{
+				if(!chosen.get(e.getKey()).contains(e.getValue()))
+				{
+					keep = false;
+					break;
+				}
+			}
+			if(keep)
+			{
+				keys.add(map);
+			}
+		}
+
+		TreeMap<DimensionMap,String> ret = new TreeMap<DimensionMap,String>();
+		int n = Math.min(maxPlanes, keys.size());
+		for (int i = 0; i < n; i++)
+		{
+			DimensionMap map = keys.get(n == 1 ? 0 : (int) ((long) i * (keys.size() - 1) / (n - 1)));
+			ret.put(map, imageMap.get(map));
+		}
+		return ret;
+	}
+
+	/**
+	 * Shrink the image by scale (0 to 1), averaging the pixels that are combined. The original is flushed.
+	 */
+	public static ImagePlus downsample(ImagePlus im, double scale)
+	{
+		if(scale <= 0 || scale >= 1)
+		{
+			return im;
+		}
+		ImageProcessor ip = im.getProcessor();
+		int width = Math.max(1, (int) Math.round(ip.getWidth() * scale));
+		int height = Math.max(1, (int) Math.round(ip.getHeight() * scale));
+		ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+		ImageProcessor small = ip.resize(width, height, true);
+		ImagePlus ret = new ImagePlus(im.getTitle(), small);
+		im.flush();
+		return ret;
+	}
+
+	/**
+	 * A filter radius in pixels of the downsampled image that covers the same area as radius did at full size.
+	 */
+	public static double scaleRadius(double radius, double scale)
+	{
+		if(scale <= 0 || scale >= 1)
+		{
+			return radius;
+		}
+		return Math.max(0.5, radius * scale);
+	}
+
+	public static void log(TreeMap<DimensionMap,String> imageMap, TreeMap<DimensionMap,String> previewMap, double scale, Object source)
+	{
+		Logs.log("Preview: " + previewMap.size() + " of " + imageMap.size() + " planes at " + Math.round(100 * Math.min(1, scale)) + "% size.", source);
+	}
+
+	/**
+	 * Numeric order if every value is a number, text order otherwise.
+	 */
+	static List<String> sortValues(Collection<String> set)
+	{
+		List<String> ret = new ArrayList<String>(set);
+		boolean numeric = true;
+		for (String s : ret)
+		{
+			try
+			{
+				Double.parseDouble(s);
+			}
+			catch (NumberFormatException e)
+			{
+				numeric = false;
+				break;
+			}
+		}
+		if(numeric)
+		{
+			Collections.sort(ret, new Comparator<String>(){
+				@Override
+				public int compare(String a, String b)
+				{
+					return Double.compare(Double.parseDouble(a), Double.parseDouble(b));
+				}
+			});
+		}
+		else
+		{
+			Collections.sort(ret);
+		}
+		return ret;
+	}
+}
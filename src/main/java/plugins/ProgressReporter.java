@@ -0,0 +1,172 @@
+package plugins;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jex.statics.JEXStatics;
+import logs.Logs;
+
+/**
+ * Collects progress and log messages from any number of plane threads and passes them on to the status bar and Logs at
+ * most FLUSH_HZ times a second. Updating the status bar and logging once per plane costs more than the work itself when
+ * there are thousands of small planes spread over many threads.
+ *
+ * Counting a plane or queueing a message never blocks. Whichever thread finishes a plane after the flush interval has
+ * passed does the flush; the others only bump a counter or queue their message. The flush itself is synchronized, since
+ * finish() and direct calls can overlap with it. Rate and time remaining are logged every LOG_INTERVAL_MILLIS and summarized by finish().
+ *
+ */
+public class ProgressReporter {
+
+	public static final int FLUSH_HZ = 10;
+
+	/**
+	 * Time between progress lines in the log.
+	 */
+	public static final long LOG_INTERVAL_MILLIS = 10000;
+
+	private static final long FLUSH_INTERVAL_NANOS = 1000000000L / FLUSH_HZ;
+
+	private final Object source;
+	private final int total;
+	private final long start = System.nanoTime();
+	private final AtomicInteger done = new AtomicInteger(0);
+	private final ConcurrentLinkedQueue<String> messages = new ConcurrentLinkedQueue<String>();
+	private final AtomicLong nextFlush = new AtomicLong(this.start + FLUSH_INTERVAL_NANOS);
+	private int messageLevel = -1;
+
+	// Only used while flushing
+	private int lastPercentage = -1;
+	private long nextLog = this.start + LOG_INTERVAL_MILLIS * 1000000L;
+
+	/**
+	 * @param source object to log as (usually the plugin)
+	 * @param total number of planes expected
+	 */
+	public ProgressReporter(Object source, int total)
+	{
+		this.source = source;
+		this.total = total;
+	}
+
+	/**
+	 * Log queued messages with this verbosity (see Logs.log) instead of the default.
+	 */
+	public void setMessageLevel(int level)
+	{
+		this.messageLevel = level;
+	}
+
+	/**
+	 * Count a finished plane.
+	 */
+	public void planeFinished()
+	{
+		this.done.incrementAndGet();
+		this.maybeFlush();
+	}
+
+	/**
+	 * Queue a message for the log.
+	 */
+	public void log(String message)
+	{
+		this.messages.add(message);
+		this.maybeFlush();
+	}
+
+	public int getDone()
+	{
+		return this.done.get();
+	}
+
+	/**
+	 * Planes finished per second so far.
+	 */
+	public double getRate()
+	{
+		double seconds = (System.nanoTime() - this.start) / 1e9;
+		return seconds <= 0 ? 0 : this.done.get() / seconds;
+	}
+
+	/**
+	 * Estimated seconds until every plane is finished at the rate so far, or -1 before the first plane finishes.
+	 */
+	public double getSecondsRemaining()
+	{
+		double rate = this.getRate();
+		if(rate <= 0)
+		{
+			return -1;
+		}
+		return Math.max(0, this.total - this.done.get()) / rate;
+	}
+
+	/**
+	 * Flush what is left and log the number of planes, time, and rate.
+	 */
+	public void finish()
+	{
+		this.flush();
+		double seconds = (System.nanoTime() - this.start) / 1e9;
+		Logs.log("Finished " + this.done.get() + " of " + this.total + " planes in " + String.format("%.1f", seconds) + " s (" + String.format("%.1f", this.getRate()) + " planes/s).", this.source);
+	}
+
+	private void maybeFlush()
+	{
+		long now = System.nanoTime();
+		long next = this.nextFlush.get();
+		// Only the thread that moves the deadline flushes
+		if(now >= next && this.nextFlush.compareAndSet(next, now + FLUSH_INTERVAL_NANOS))
+		{
+			this.flush();
+		}
+	}
+
+	/**
+	 * Pass queued messages and the current progress on now.
+	 */
+	public synchronized void flush()
+	{
+		// Queued messages go out as one log entry
+		StringBuilder sb = null;
+		String message;
+		while((message = this.messages.poll()) != null)
+		{
+			if(sb == null)
+			{
+				sb = new StringBuilder(message);
+			}
+			else
+			{
+				sb.append("\n").append(message);
+			}
+		}
+		if(sb != null && this.messageLevel >= 0)
+		{
+			Logs.log(sb.toString(), this.messageLevel, this.source);
+		}
+		else if(sb != null)
+		{
+			Logs.log(sb.toString(), this.source);
+		}
+
+		int done = this.done.get();
+		int percentage = this.total <= 0 ? 100 : (int) (100 * ((double) done / (double) this.total));
+		// No status bar when used outside of the JEX user interface (e.g., benchmarks)
+		if(percentage != this.lastPercentage && JEXStatics.statusBar != null)
+		{
+			JEXStatics.statusBar.setProgressPercentage(percentage);
+			this.lastPercentage = percentage;
+		}
+
+		long now = System.nanoTime();
+		if(now >= this.nextLog && done < this.total)
+		{
+			this.nextLog = now + LOG_INTERVAL_MILLIS * 1000000L;
+			double remaining = this.getSecondsRemaining();
+			Logs.log("Progress: " + done + " of " + this.total + " planes (" + percentage + "%), " + String.format("%.1f", this.getRate()) + " planes/s, about " + (remaining < 0 ? "?" : String.valueOf(Math.round(remaining))) + " s remaining.", this.source);
+		}
+	}
+}
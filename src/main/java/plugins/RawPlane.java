@@ -0,0 +1,326 @@
+package plugins;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import Database.SingleUserDatabase.JEXWriter;
+
+/**
+ * A single uncompressed image plane stored as a fixed size header followed by the pixels. Planes are written with
+ * ordinary file writes and read back through a read-only memory mapped buffer. Reading one back needs no TIFF decoding
+ * and no ImagePlus, and 8, 16, and 32-bit pixels can be used directly as ByteBuffer, ShortBuffer, or FloatBuffer views
+ * of the file.
+ *
+ * Layout (header values are big endian):
+ *
+ * <pre>
+ * 0  "JEXRAW01"
+ * 8  width
+ * 12 height
+ * 16 bit depth (8, 16, or 32)
+ * 20 pixel byte order (0 = big endian, 1 = little endian)
+ * 32 pixels, row by row
+ * </pre>
+ *
+ * Other programs (and JEX's viewers) don't understand this format, so planes are converted to and from TIFF when they
+ * enter or leave a chain of plugins that use it (see Example_ConvertRawPlanes). Note that the operating system keeps a
+ * plane that was opened mapped until its buffer is garbage collected.
+ *
+ */
+public class RawPlane {
+
+	public static final String FORMAT_TIFF = "TIFF", FORMAT_RAW = "Raw (memory-mapped)";
+
+	/**
+	 * Description of every "Output Format" parameter that offers FORMAT_RAW.
+	 */
+	public static final String FORMAT_DESCRIPTION = "Raw planes are uncompressed and memory-mapped, so later plugins can read them without decoding or extra copies. Use 'Example - Convert Raw Planes' to turn them back into TIFF for viewing.";
+
+	public static final String EXTENSION = "jxr";
+	public static final int HEADER_SIZE = 32;
+	private static final int WRITE_CHUNK = 1024 * 1024;
+	private static final byte[] MAGIC = { 'J', 'E', 'X', 'R', 'A', 'W', '0', '1' };
+
+	private final File file;
+	private final int width, height, bitDepth;
+	private final ByteBuffer pixels;
+
+	private RawPlane(File file, int width, int height, int bitDepth, MappedByteBuffer mapped, ByteOrder order)
+	{
+		this.file = file;
+		this.width = width;
+		this.height = height;
+		this.bitDepth = bitDepth;
+		mapped.position(HEADER_SIZE);
+		this.pixels = mapped.slice().order(order);
+	}
+
+	/**
+	 * True if the file at path has the raw plane extension.
+	 */
+	public static boolean isRawPlane(String path)
+	{
+		return path != null && EXTENSION.equals(FileTransfer.getExtension(new File(path)));
+	}
+
+	/**
+	 * True if ip can be stored as a raw plane (8, 16, and 32-bit grayscale).
+	 */
+	public static boolean supports(ImageProcessor ip)
+	{
+		return ip instanceof ByteProcessor || ip instanceof ShortProcessor || ip instanceof FloatProcessor;
+	}
+
+	/**
+	 * Write ip (8, 16, or 32-bit) to a new raw plane at f. The file is written through its channel rather than mapped,
+	 * so nothing stays mapped (or locked, on Windows) once this returns.
+	 */
+	public static void write(File f, ImageProcessor ip) throws IOException
+	{
+		if(!supports(ip))
+		{
+			throw new IllegalArgumentException("Raw planes can only hold 8, 16, or 32-bit grayscale pixels");
+		}
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		int bitDepth = ip.getBitDepth();
+		ByteOrder order = ByteOrder.nativeOrder();
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.put(MAGIC);
+		header.putInt(width);
+		header.putInt(height);
+		header.putInt(bitDepth);
+		header.putInt(order == ByteOrder.LITTLE_ENDIAN ? 1 : 0);
+		header.rewind();
+
+		FileOutputStream out = new FileOutputStream(f);
+		try
+		{
+			FileChannel channel = out.getChannel();
+			writeFully(channel, header);
+			// Pixels go out a chunk at a time so the whole plane is never copied at once
+			int bytesPerPixel = bitDepth / 8;
+			int step = WRITE_CHUNK / bytesPerPixel;
+			int n = width * height;
+			ByteBuffer chunk = ByteBuffer.allocate(step * bytesPerPixel).order(order);
+			for (int i = 0; i < n; i = i + step)
+			{
+				int count = Math.min(step, n - i);
+				chunk.clear();
+				if(bitDepth == 8)
+				{
+					chunk.put((byte[]) ip.getPixels(), i, count);
+				}
+				else if(bitDepth == 16)
+				{
+					chunk.asShortBuffer().put((short[]) ip.getPixels(), i, count);
+				}
+				else
+				{
+					chunk.asFloatBuffer().put((float[]) ip.getPixels(), i, count);
+				}
+				chunk.position(0);
+				chunk.limit(count * bytesPerPixel);
+				writeFully(channel, chunk);
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		while(buffer.hasRemaining())
+		{
+			channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Map an existing raw plane for reading.
+	 */
+	public static RawPlane open(File f) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try
+		{
+			MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			byte[] magic = new byte[MAGIC.length];
+			mapped.get(magic);
+			if(!Arrays.equals(magic, MAGIC))
+			{
+				throw new IOException("Not a raw plane: " + f.getPath());
+			}
+			int width = mapped.getInt();
+			int height = mapped.getInt();
+			int bitDepth = mapped.getInt();
+			ByteOrder order = mapped.getInt() == 1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+			if(raf.length() < HEADER_SIZE + ((long) width) * height * (bitDepth / 8))
+			{
+				throw new IOException("Raw plane is truncated: " + f.getPath());
+			}
+			return new RawPlane(f, width, height, bitDepth, mapped, order);
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	public File getFile()
+	{
+		return this.file;
+	}
+
+	public int getWidth()
+	{
+		return this.width;
+	}
+
+	public int getHeight()
+	{
+		return this.height;
+	}
+
+	public int getBitDepth()
+	{
+		return this.bitDepth;
+	}
+
+	/**
+	 * View of the pixel bytes (no copy).
+	 */
+	public ByteBuffer getPixels()
+	{
+		return this.pixels.duplicate().order(this.pixels.order());
+	}
+
+	/**
+	 * View of 16-bit pixels (no copy).
+	 */
+	public ShortBuffer asShortBuffer()
+	{
+		return this.getPixels().asShortBuffer();
+	}
+
+	/**
+	 * View of 32-bit pixels (no copy).
+	 */
+	public FloatBuffer asFloatBuffer()
+	{
+		return this.getPixels().asFloatBuffer();
+	}
+
+	/**
+	 * Copy the pixels into a new ImageJ processor of the same bit depth.
+	 */
+	public ImageProcessor toProcessor()
+	{
+		if(this.bitDepth == 8)
+		{
+			byte[] data = new byte[this.width * this.height];
+			this.getPixels().get(data);
+			return new ByteProcessor(this.width, this.height, data, null);
+		}
+		if(this.bitDepth == 16)
+		{
+			short[] data = new short[this.width * this.height];
+			this.asShortBuffer().get(data);
+			return new ShortProcessor(this.width, this.height, data, null);
+		}
+		float[] data = new float[this.width * this.height];
+		this.asFloatBuffer().get(data);
+		return new FloatProcessor(this.width, this.height, data, null);
+	}
+
+	/**
+	 * Write ip to a new raw plane in the database temp folder.
+	 *
+	 * @return the path of the new temp file
+	 */
+	public static String save(ImageProcessor ip) throws IOException
+	{
+		File f = new File(JEXWriter.getDatabaseFolder() + File.separator + JEXWriter.getUniqueRelativeTempPath(EXTENSION));
+		f.getParentFile().mkdirs();
+		write(f, ip);
+		return f.getAbsolutePath();
+	}
+
+	/**
+	 * Save ip as a raw plane if asked to and possible, as a TIFF otherwise.
+	 *
+	 * @return the path of the new temp file
+	 */
+	public static String saveImage(ImageProcessor ip, boolean raw) throws IOException
+	{
+		if(raw && supports(ip))
+		{
+			return save(ip);
+		}
+		return JEXWriter.saveImage(ip);
+	}
+
+	/**
+	 * Save ip as a raw plane if asked to and possible, otherwise as a TIFF with the given compression (see
+	 * CompressedTiffWriter). Raw planes are never compressed so they can still be memory-mapped.
+	 *
+	 * @return the path of the new temp file
+	 */
+	public static String saveImage(ImageProcessor ip, boolean raw, String compression) throws IOException
+	{
+		if(raw && supports(ip))
+		{
+			return save(ip);
+		}
+		return CompressedTiffWriter.save(ip, compression);
+	}
+
+	/**
+	 * Open a raw plane, a lazy plane (see LazyPlane), or any image ImageJ can read.
+	 */
+	public static ImagePlus openImage(String path) throws IOException
+	{
+		path = LazyPlane.resolve(path);
+		if(isRawPlane(path))
+		{
+			return new ImagePlus(new File(path).getName(), open(new File(path)).toProcessor());
+		}
+		return new ImagePlus(path);
+	}
+
+	/**
+	 * Convert the raw plane at path to a TIFF in the database temp folder.
+	 */
+	public static String toTiff(String path) throws IOException
+	{
+		return JEXWriter.saveImage(open(new File(path)).toProcessor());
+	}
+
+	/**
+	 * Convert the image at path to a raw plane in the database temp folder.
+	 */
+	public static String fromTiff(String path) throws IOException
+	{
+		ImagePlus im = new ImagePlus(path);
+		String ret = saveImage(im.getProcessor(), true);
+		im.flush();
+		return ret;
+	}
+}
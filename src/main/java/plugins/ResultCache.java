@@ -0,0 +1,269 @@
+package plugins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import logs.Logs;
+import tables.DimensionMap;
+import function.plugin.mechanism.JEXPlugin;
+
+/**
+ * Persistent, content addressed cache of per-plane results. Entries are keyed by the SHA-256 of the input file's
+ * contents combined with a ParameterFingerprint of the plugin, so re-running a plugin on unchanged data with unchanged
+ * parameters can reuse the previous output instead of recomputing it.
+ *
+ * Outputs are stored in the cache folder as hard links when possible (copies otherwise) and handed back to JEX the
+ * same way. When the folder grows beyond its size limit the least recently used entries are deleted. Use is tracked in
+ * memory only (seeded from the modification times when the folder is first scanned) so that cache hits never touch
+ * the files they share with the database.
+ *
+ */
+public class ResultCache {
+
+	/**
+	 * Description of every "Cache Folder" parameter.
+	 */
+	public static final String FOLDER_DESCRIPTION = "Folder of previously computed planes to reuse when the input and parameters haven't changed. Leave blank to turn off caching.";
+
+	/**
+	 * Description of every "Cache Size (GB)" parameter.
+	 */
+	public static final String SIZE_DESCRIPTION = "Least recently used planes are removed from the cache folder once it grows beyond this size";
+
+	/**
+	 * State of each cache folder, keyed by its canonical path, shared by every ResultCache on that folder during this
+	 * session so the size and last use of its entries are only counted once.
+	 */
+	private static final ConcurrentHashMap<String,Folder> folders = new ConcurrentHashMap<String,Folder>();
+
+	private final File folder;
+	private final long maxBytes;
+	private final Folder state;
+	private final AtomicLong hits = new AtomicLong(0);
+	private final AtomicLong misses = new AtomicLong(0);
+	private final AtomicLong evictions = new AtomicLong(0);
+
+	public ResultCache(File folder, long maxBytes)
+	{
+		this.folder = folder;
+		this.maxBytes = maxBytes;
+		this.state = getFolder(folder);
+	}
+
+	/**
+	 * The shared state of folder, scanning the folder the first time it is used.
+	 */
+	private static Folder getFolder(File folder)
+	{
+		folder.mkdirs();
+		String id;
+		try
+		{
+			id = folder.getCanonicalPath();
+		}
+		catch (IOException e)
+		{
+			id = folder.getAbsolutePath();
+		}
+		Folder state = folders.get(id);
+		if(state != null)
+		{
+			return state;
+		}
+		state = new Folder();
+		File[] files = folder.listFiles();
+		if(files != null)
+		{
+			for (File f : files)
+			{
+				if(f.isFile() && !f.getName().endsWith(".part"))
+				{
+					state.size.addAndGet(f.length());
+					state.used.put(f.getName(), f.lastModified());
+				}
+			}
+		}
+		Folder existing = folders.putIfAbsent(id, state);
+		return existing == null ? state : existing;
+	}
+
+	/**
+	 * Cache key for an input file processed with the given parameter fingerprint.
+	 */
+	public String makeKey(String inputPath, String fingerprint) throws IOException
+	{
+		return ParameterFingerprint.hash(ParameterFingerprint.hash(new File(inputPath)) + ";" + fingerprint);
+	}
+
+	/**
+	 * Return a new database temp file holding the cached result for key, or null on a miss.
+	 */
+	public String get(String key, String ext)
+	{
+		String name = key + "." + ext;
+		File cached = new File(this.folder, name);
+		if(!cached.exists())
+		{
+			this.misses.incrementAndGet();
+			return null;
+		}
+		// Access time stays in memory; the file may be hard linked to database files whose modification time matters
+		this.state.used.put(name, System.currentTimeMillis());
+		this.hits.incrementAndGet();
+		return FileTransfer.shareFile(cached);
+	}
+
+	/**
+	 * Store the result at outputPath under key.
+	 */
+	public void put(String key, String outputPath)
+	{
+		if(key == null || outputPath == null)
+		{
+			return;
+		}
+		File output = new File(outputPath);
+		String name = key + "." + FileTransfer.getExtension(output);
+		File cached = new File(this.folder, name);
+		if(cached.exists())
+		{
+			return;
+		}
+		// Write under a temporary name first so a half written file is never picked up as a hit
+		File part = new File(this.folder, name + "." + Thread.currentThread().getId() + ".part");
+		try
+		{
+			FileTransfer.linkOrCopy(output, part, true);
+			// Another thread may have stored the same key meanwhile, only the first one counts
+			synchronized(this.state)
+			{
+				if(!cached.exists() && part.renameTo(cached))
+				{
+					this.state.size.addAndGet(cached.length());
+					this.state.used.put(name, System.currentTimeMillis());
+				}
+				else
+				{
+					part.delete();
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			part.delete();
+			e.printStackTrace();
+		}
+		if(this.state.size.get() > this.maxBytes)
+		{
+			this.evict();
+		}
+	}
+
+	/**
+	 * Delete least recently used entries until the cache is back under 90% of its limit.
+	 */
+	private void evict()
+	{
+		synchronized(this.state)
+		{
+			if(this.state.size.get() <= this.maxBytes)
+			{
+				return;
+			}
+			TreeMap<Long,String> byAge = new TreeMap<Long,String>();
+			for (Entry<String,Long> e : this.state.used.entrySet())
+			{
+				long t = e.getValue();
+				while(byAge.containsKey(t))
+				{
+					t = t + 1;
+				}
+				byAge.put(t, e.getKey());
+			}
+			long target = (long) (0.9 * this.maxBytes);
+			for (String name : byAge.values())
+			{
+				if(this.state.size.get() <= target)
+				{
+					break;
+				}
+				File f = new File(this.folder, name);
+				long length = f.length();
+				if(f.delete() || !f.exists())
+				{
+					this.state.size.addAndGet(-length);
+					this.state.used.remove(name);
+					this.evictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	public long getHits()
+	{
+		return this.hits.get();
+	}
+
+	public long getMisses()
+	{
+		return this.misses.get();
+	}
+
+	public long getEvictions()
+	{
+		return this.evictions.get();
+	}
+
+	/**
+	 * Look up every plane of inputMap (on nThreads threads since hashing is I/O bound).
+	 *
+	 * @param ext extension of the cached outputs
+	 * @param toProcess receives the planes that missed and still need to be computed
+	 * @param keys receives the cache key of every plane so results can be stored with put
+	 * @return the planes that hit, mapped to their new temp files, or null if canceled
+	 */
+	public TreeMap<DimensionMap,String> lookup(JEXPlugin plugin, TreeMap<DimensionMap,String> inputMap, final String fingerprint, final String ext, int nThreads, TreeMap<DimensionMap,String> toProcess, final Map<DimensionMap,String> keys)
+	{
+		PlaneExecutor executor = new PlaneExecutor(plugin, nThreads);
+		TreeMap<DimensionMap,String> found = executor.run(inputMap, new PlaneExecutor.PlaneTask(){
+			@Override
+			public String run(DimensionMap map, String path) throws Exception
+			{
+				String key = ResultCache.this.makeKey(path, fingerprint);
+				keys.put(map, key);
+				return ResultCache.this.get(key, ext);
+			}
+		});
+		if(found == null)
+		{
+			return null;
+		}
+		for (Entry<DimensionMap,String> e : inputMap.entrySet())
+		{
+			if(!found.containsKey(e.getKey()))
+			{
+				toProcess.put(e.getKey(), e.getValue());
+			}
+		}
+		return found;
+	}
+
+	public void log(Object source)
+	{
+		Logs.log("Result cache " + this.folder.getAbsolutePath() + ": " + this.hits.get() + " hits, " + this.misses.get() + " misses, " + this.evictions.get() + " evictions, " + (this.state.size.get() / (1024 * 1024)) + " MB of " + (this.maxBytes / (1024 * 1024)) + " MB used.", source);
+	}
+
+	/**
+	 * Size and last use of the entries of one cache folder. Entries are only added and removed while holding its lock.
+	 */
+	private static class Folder
+	{
+		final AtomicLong size = new AtomicLong(0);
+		final ConcurrentHashMap<String,Long> used = new ConcurrentHashMap<String,Long>();
+	}
+}
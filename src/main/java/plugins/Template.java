@@ -2,9 +2,9 @@
 package plugins;
 
 // Import needed classes here 
+import java.io.File;
 import java.util.TreeMap;
 
-import jex.statics.JEXStatics;
 import logs.Logs;
 
 import org.scijava.plugin.Plugin;
@@ -39,6 +39,10 @@ public class Template extends JEXPlugin {
 	@InputMarker(uiOrder=1, name="Image", type=MarkerConstants.TYPE_IMAGE, description="Image to be adjusted.", optional=false)
 	JEXData inputData;
 	
+	// Optional inputs can be left unconnected by the user, in which case the field is null
+	@InputMarker(uiOrder=2, name="Previous Output", type=MarkerConstants.TYPE_IMAGE, description="Output of the last run on this entry. Used with the Incremental State Folder to only process new or changed planes.", optional=true)
+	JEXData previousData;
+	
 	/////////// Define Parameters here ///////////
 	
 	@ParameterMarker(uiOrder=6, name="Checkbox", description="A simple checkbox for entering true/false variables.", ui=MarkerConstants.UI_CHECKBOX, defaultBoolean=true)
@@ -59,6 +63,9 @@ public class Template extends JEXPlugin {
 	@ParameterMarker(uiOrder=5, name="Script", description="The script interface provides a multi-line textbox to input code to pass along to your function providing greater flexibility beyond a simple text box.", ui=MarkerConstants.UI_SCRIPT, defaultText="# Replace with user code #")
 	String script;
 	
+	@ParameterMarker(uiOrder=7, name="Incremental State Folder", description="Folder in which to remember the input planes of each run so later runs only process new or changed planes (requires the Previous Output input). Leave blank to process every plane.", ui=MarkerConstants.UI_FILECHOOSER, defaultText="")
+	String stateFolder;
+	
 	/////////// Define Outputs here ///////////
 	
 	// See Database.Definition.OutpuMarker for types of inputs that are supported (File, Image, Value, ROI...)
@@ -86,10 +93,32 @@ public class Template extends JEXPlugin {
 		// Read in the input with one of the many "reader" classes (see package "Database.DataReader")
 		TreeMap<DimensionMap,String> inputMap = ImageReader.readObjectToImagePathTable(inputData);
 		TreeMap<DimensionMap,String> outputMap = new TreeMap<DimensionMap,String>();
-		int count = 0, percentage = 0;
+		
+		// Optionally reuse the previous outputs of planes that haven't changed since the last run (e.g., during live acquisition)
+		TreeMap<DimensionMap,String> toProcess = inputMap;
+		IncrementalManifest manifest = null;
+		if(stateFolder != null && !stateFolder.trim().equals(""))
+		{
+			TreeMap<DimensionMap,String> previousMap = null;
+			if(previousData != null && previousData.getTypeName().getType().equals(JEXData.IMAGE))
+			{
+				previousMap = ImageReader.readObjectToImagePathTable(previousData);
+			}
+			// Leave the password out of the fingerprint since the manifest is saved as plain text
+			manifest = IncrementalManifest.load(new File(stateFolder), this, optionalEntry, inputData.getTypeName().toString(), ParameterFingerprint.of(this, "checkbox", "value", "choice", "path", "script"));
+			toProcess = new TreeMap<DimensionMap,String>();
+			TreeMap<DimensionMap,String> unchanged = manifest.split(inputMap, previousMap, toProcess);
+			for (DimensionMap map : unchanged.keySet())
+			{
+				outputMap.put(map, FileTransfer.shareFile(new File(unchanged.get(map))));
+			}
+		}
+		
+		// Progress and log messages from the loop are passed on to the user interface a few times a second
+		ProgressReporter progress = new ProgressReporter(this, toProcess.size());
 		
 		// Loop through the items in the n-Dimensional object
-		for (DimensionMap map : inputMap.keySet())
+		for (DimensionMap map : toProcess.keySet())
 		{
 			// Cancel the function as soon as possible if the user has hit the cancel button
 			// Perform this inside loops to check as often as possible.
@@ -99,23 +128,26 @@ public class Template extends JEXPlugin {
 			}
 			
 			// Print the value contained in the input map.
-			Logs.log(inputMap.get(map), this);
+			progress.log(toProcess.get(map));
 			
 			// Print parameter values by calling a helper method
-			String pathToSave = printParameters(checkbox, value, choice, path, password, script);
+			String pathToSave = printParameters(progress, checkbox, value, choice, path, password, script);
 			
 			// Store returned data
 			outputMap.put(map, pathToSave);
 			
 			// Update the user interface with progress
-			count = count + 1;
-			percentage = (int) (100 * ((double) (count) / ((double) inputMap.size())));
-			JEXStatics.statusBar.setProgressPercentage(percentage);
+			progress.planeFinished();
 		}
+		progress.finish();
 		if(outputMap.size() == 0)
 		{
 			return false;
 		}
+		if(manifest != null)
+		{
+			manifest.save(inputMap);
+		}
 		
 		// Set output (see package "Database.DataWriter" for other types of data that can be created)
 		this.outputData = ImageWriter.makeImageStackFromPaths("tempName", outputMap);
@@ -127,12 +159,21 @@ public class Template extends JEXPlugin {
 	// Helper functions should go below the run function
 	public String printParameters(boolean checkbox, double value, String choice, String path, String password, String script)
 	{
-		Logs.log(""+checkbox, this);
-		Logs.log(""+value, this);
-		Logs.log(""+choice, this);
-		Logs.log(""+path, this);
-		Logs.log(""+password, this);
-		Logs.log(""+script, this);
+		return this.printParameters(null, checkbox, value, choice, path, password, script);
+	}
+	
+	// Queues the values on progress (if not null) instead of logging them right away
+	public String printParameters(ProgressReporter progress, boolean checkbox, double value, String choice, String path, String password, String script)
+	{
+		String message = checkbox + "\n" + value + "\n" + choice + "\n" + path + "\n" + password + "\n" + script;
+		if(progress == null)
+		{
+			Logs.log(message, this);
+		}
+		else
+		{
+			progress.log(message);
+		}
 		return(path);
 	}
 }
@@ -0,0 +1,170 @@
+package plugins;
+
+import ij.ImagePlus;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Filters a single large plane as a set of horizontal tiles on several threads.
+ *
+ * Each tile spans the full width of the plane and carries a halo of extra rows above and below that covers the kernel,
+ * so every output pixel sees exactly the same neighborhood it would in the whole plane. RankFilters and FastRankFilters
+ * both start their running sums at the beginning of each row (and FastRankFilters restarts its column sums on fixed
+ * image rows that the tiles line up with), so the stitched result is bit-identical to filtering the whole plane.
+ *
+ * Only the tiles being worked on are converted to float, so the extra memory needed is proportional to the number of
+ * threads times the tile size rather than to the size of the plane. Tiles run on the shared PlaneScheduler pool rather
+ * than on threads of their own.
+ *
+ */
+public class TiledFilter {
+
+	/**
+	 * Filter ip with the given engine and return the result converted to bitDepth.
+	 */
+	public static ImageProcessor filter(final ImageProcessor ip, final String method, final double radius, final String engine, final int bitDepth, int nThreads)
+	{
+		if(ip instanceof ColorProcessor)
+		{
+			// RGB has no per-row float conversion, do it the normal way
+			return Example_Filters.filterImage(new ImagePlus("", ip), method, radius, engine, bitDepth);
+		}
+
+		final int width = ip.getWidth();
+		final int height = ip.getHeight();
+		final boolean fast = Example_Filters.ENGINE_FAST.equals(engine) && FastRankFilters.supports(method);
+		final int halo = getHalo(radius, fast);
+		final int tileRows = getTileRows(radius, fast);
+
+		final ImageProcessor output = makeOutput(width, height, bitDepth);
+		final int nTiles = (height + tileRows - 1) / tileRows;
+		final int nGroups = Math.max(1, Math.min(nThreads, nTiles));
+
+		// One task per thread, each filtering every nGroups-th tile, so at most nThreads tiles of this plane are in memory
+		final List<RecursiveAction> groups = new ArrayList<RecursiveAction>();
+		for (int g = 0; g < nGroups; g++)
+		{
+			final int first = g;
+			groups.add(new RecursiveAction(){
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute()
+				{
+					for (int t = first; t < nTiles; t = t + nGroups)
+					{
+						int start = t * tileRows;
+						filterTile(ip, start, Math.min(height, start + tileRows), halo, method, radius, fast, bitDepth, output);
+					}
+				}
+			});
+		}
+		RecursiveAction all = new RecursiveAction(){
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute()
+			{
+				invokeAll(groups);
+			}
+		};
+
+		// Tiles share the PlaneScheduler pool with the planes, so plane threads times tile threads never adds up to more
+		// threads than processors. From a scheduler thread the tiles are forked onto that thread's own queue.
+		try
+		{
+			if(PlaneScheduler.isSchedulerThread())
+			{
+				all.invoke();
+			}
+			else
+			{
+				PlaneScheduler.getPool().invoke(all);
+			}
+		}
+		catch (RuntimeException e)
+		{
+			e.printStackTrace();
+			return null;
+		}
+		return output;
+	}
+
+	/**
+	 * Rows of context needed on each side of a tile.
+	 */
+	public static int getHalo(double radius, boolean fast)
+	{
+		if(fast)
+		{
+			return FastRankFilters.getHalfWidth(radius);
+		}
+		// Same kernel radius that RankFilters.makeKernel computes, plus one for safety
+		int r2 = (int) (radius * radius) + 1;
+		return (int) (Math.sqrt(r2 + 1e-10)) + 1;
+	}
+
+	/**
+	 * Height of each tile, a multiple of the FastRankFilters row block and large compared to the halo so the overlap
+	 * stays a small fraction of the work.
+	 */
+	public static int getTileRows(double radius, boolean fast)
+	{
+		int block = FastRankFilters.getRowBlock(FastRankFilters.getHalfWidth(radius));
+		int rows = Math.max(256, 16 * getHalo(radius, fast));
+		return block * ((rows + block - 1) / block);
+	}
+
+	private static void filterTile(ImageProcessor ip, int start, int end, int halo, String method, double radius, boolean fast, int bitDepth, ImageProcessor output)
+	{
+		int width = ip.getWidth();
+		int height = ip.getHeight();
+		int haloStart = Math.max(0, start - halo);
+		int haloEnd = Math.min(height, end + halo);
+		int rows = haloEnd - haloStart;
+
+		// Copy out the rows of the tile in the source depth and convert just those to float
+		ImageProcessor tile = ip.createProcessor(width, rows);
+		System.arraycopy(ip.getPixels(), haloStart * width, tile.getPixels(), 0, rows * width);
+		tile.setCalibrationTable(ip.getCalibrationTable());
+		ImageProcessor fp = tile.convertToFloat();
+
+		int outRows = end - start;
+		float[] result;
+		if(fast)
+		{
+			result = new float[outRows * width];
+			FastRankFilters.filter((float[]) fp.getPixels(), width, rows, haloStart, height, FastRankFilters.getType(method), FastRankFilters.getHalfWidth(radius), start - haloStart, end - haloStart, result);
+		}
+		else
+		{
+			Example_Filters.filterFloat(fp, new ImagePlus("", fp), method, radius, Example_Filters.ENGINE_RANKFILTERS);
+			result = new float[outRows * width];
+			System.arraycopy((float[]) fp.getPixels(), (start - haloStart) * width, result, 0, outRows * width);
+		}
+
+		// Conversion to the output depth is per pixel so it can be done a tile at a time too
+		ImageProcessor converted = Example_Filters.convertToBitDepth(new FloatProcessor(width, outRows, result, null), bitDepth);
+		System.arraycopy(converted.getPixels(), 0, output.getPixels(), start * width, outRows * width);
+	}
+
+	private static ImageProcessor makeOutput(int width, int height, int bitDepth)
+	{
+		if(bitDepth == 8)
+		{
+			return new ByteProcessor(width, height);
+		}
+		else if(bitDepth == 16)
+		{
+			return new ShortProcessor(width, height);
+		}
+		return new FloatProcessor(width, height);
+	}
+}
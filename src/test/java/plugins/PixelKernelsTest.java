@@ -0,0 +1,129 @@
+package plugins;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import jex.utilities.FunctionUtility;
+
+import org.junit.Test;
+
+/**
+ * PixelKernels must give bit-identical pixels to ImageJ's conversions and to FunctionUtility.imAdjust followed by
+ * makeImageToSave, which are what the plugins used before the kernels.
+ *
+ */
+public class PixelKernelsTest {
+
+	/**
+	 * Values where the float to integer conversions can go wrong: special values, signed zero, the smallest and
+	 * largest floats, and values just around the rounding and clamping points of the 8 and 16-bit ranges.
+	 */
+	private static final float[] EDGES = { Float.NaN, Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, 0f, -0f, Float.MIN_VALUE, -Float.MIN_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE, -1f, -0.5f, -0.49999997f, 0.49999997f, 0.5f, 1.5f, 2.5f, 254.49998f, 254.5f, 255f, 255.5f, 256f, 65534.5f, 65535f, 65535.5f, 65536f, 1e9f, -1e9f };
+
+	@Test
+	public void toShortMatchesImageJ()
+	{
+		float[] values = makeValues();
+		int n = values.length;
+		short[] actual = new short[n];
+		PixelKernels.toShort(values, actual, n);
+		short[] expected = (short[]) new FloatProcessor(n, 1, values.clone(), null).convertToShort(false).getPixels();
+		assertArrayEquals(expected, actual);
+	}
+
+	@Test
+	public void toByteMatchesImageJ()
+	{
+		float[] values = makeValues();
+		int n = values.length;
+		byte[] actual = new byte[n];
+		PixelKernels.toByte(values, actual, n);
+		byte[] expected = (byte[]) new FloatProcessor(n, 1, values.clone(), null).convertToByte(false).getPixels();
+		assertArrayEquals(expected, actual);
+	}
+
+	@Test
+	public void roundsHalvesUp()
+	{
+		float[] values = { 0.5f, 1.5f, 254.5f, 65534.5f };
+		short[] s = new short[values.length];
+		byte[] b = new byte[values.length];
+		PixelKernels.toShort(values, s, values.length);
+		PixelKernels.toByte(values, b, values.length);
+		assertArrayEquals(new short[] { 1, 2, 255, (short) 65535 }, s);
+		assertArrayEquals(new byte[] { 1, 2, (byte) 255, (byte) 255 }, b);
+	}
+
+	@Test
+	public void clampsOutOfRangeAndNaN()
+	{
+		float[] values = { -1f, Float.NEGATIVE_INFINITY, 70000f, Float.POSITIVE_INFINITY, Float.NaN };
+		short[] s = new short[values.length];
+		PixelKernels.toShort(values, s, values.length);
+		assertArrayEquals(new short[] { 0, 0, (short) 65535, (short) 65535, 0 }, s);
+	}
+
+	@Test
+	public void adjustMatchesFunctionUtility()
+	{
+		double[][] parameters = { { 0, 4095, 0, 65535, 1.0 }, { 0, 4095, 0, 65535, 0.5 }, { 100, 1000, 0, 255, 2.0 }, { 0, 65535, 0, 65535, 1.0 }, { 0, 1, 0, 1, 1.0 } };
+		int[] bitDepths = { 8, 16, 32 };
+		float[] values = makeValues();
+		for (double[] p : parameters)
+		{
+			for (int bitDepth : bitDepths)
+			{
+				FloatProcessor expected = new FloatProcessor(values.length, 1, values.clone(), null);
+				FunctionUtility.imAdjust(expected, p[0], p[1], p[2], p[3], p[4]);
+				ImagePlus saved = FunctionUtility.makeImageToSave(expected, "false", bitDepth);
+				ImageProcessor actual = new PixelKernels.Adjust(p[0], p[1], p[2], p[3], p[4], bitDepth).apply(new FloatProcessor(values.length, 1, values.clone(), null), null);
+				assertSamePixels(p[0] + "-" + p[1] + " to " + p[2] + "-" + p[3] + ", gamma " + p[4] + ", " + bitDepth + " bits", saved.getProcessor().getPixels(), actual.getPixels());
+				saved.flush();
+			}
+		}
+	}
+
+	/**
+	 * Every whole number of the 16-bit range and one past each end, each with quarters and halves in between, followed
+	 * by EDGES.
+	 */
+	private static float[] makeValues()
+	{
+		int first = -2, last = 65537;
+		float[] ret = new float[4 * (last - first + 1) + EDGES.length];
+		int n = 0;
+		for (int i = first; i <= last; i++)
+		{
+			ret[n++] = i;
+			ret[n++] = i + 0.25f;
+			ret[n++] = i + 0.5f;
+			ret[n++] = i + 0.75f;
+		}
+		System.arraycopy(EDGES, 0, ret, n, EDGES.length);
+		return ret;
+	}
+
+	private static void assertSamePixels(String message, Object expected, Object actual)
+	{
+		if(expected instanceof float[])
+		{
+			float[] x = (float[]) expected, y = (float[]) actual;
+			assertEquals(message, x.length, y.length);
+			for (int i = 0; i < x.length; i++)
+			{
+				assertEquals(message + " at " + i, Float.floatToIntBits(x[i]), Float.floatToIntBits(y[i]));
+			}
+		}
+		else if(expected instanceof short[])
+		{
+			assertArrayEquals(message, (short[]) expected, (short[]) actual);
+		}
+		else
+		{
+			assertArrayEquals(message, (byte[]) expected, (byte[]) actual);
+		}
+	}
+}
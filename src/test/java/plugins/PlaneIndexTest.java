@@ -0,0 +1,210 @@
+package plugins;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import tables.DimensionMap;
+
+/**
+ * PlaneIndex must give back the same planes and paths as the table it was built from, in DimTable order.
+ *
+ */
+public class PlaneIndexTest {
+
+	private static final String[] DIMS = { "Color", "Time" };
+	private static final String[][] VALUES = { { "0", "1", "2" }, { "1", "2", "10" } };
+
+	@Test
+	public void keysRoundTripInTableOrder()
+	{
+		PlaneIndex.Builder builder = new PlaneIndex.Builder(DIMS, VALUES);
+		// Added backwards so the build has to sort
+		for (int c = 2; c >= 0; c--)
+		{
+			for (int t = 2; t >= 0; t--)
+			{
+				builder.add(map("Color", VALUES[0][c], "Time", VALUES[1][t]), path(VALUES[0][c], VALUES[1][t]));
+			}
+		}
+		PlaneIndex index = builder.build();
+		assertEquals(9, index.size());
+		int i = 0;
+		for (String c : VALUES[0])
+		{
+			for (String t : VALUES[1])
+			{
+				// Time 10 after Time 2, as in the table, not as text
+				assertEquals(map("Color", c, "Time", t), index.getMap(i));
+				assertEquals(path(c, t), index.getPath(i));
+				assertEquals(path(c, t), index.get(map("Color", c, "Time", t)));
+				i = i + 1;
+			}
+		}
+		assertNull(index.get(map("Color", "3", "Time", "1")));
+		assertNull(index.get(map("Channel", "0")));
+	}
+
+	@Test
+	public void missingDimensionIsKeptOut()
+	{
+		PlaneIndex.Builder builder = new PlaneIndex.Builder(DIMS, VALUES);
+		builder.add(map("Color", "0", "Time", "1"), "a");
+		builder.add(map("Time", "2"), "b");
+		PlaneIndex index = builder.build();
+		assertEquals(2, index.size());
+		// No Color packs as 0, before every Color value
+		assertEquals(map("Time", "2"), index.getMap(0));
+		assertEquals("b", index.getPath(0));
+		assertEquals("b", index.get(map("Time", "2")));
+		assertNull(index.get(map("Color", "0", "Time", "2")));
+		assertEquals(map("Color", "0", "Time", "1"), index.getMap(1));
+	}
+
+	@Test
+	public void laterDuplicateReplacesEarlier()
+	{
+		PlaneIndex.Builder builder = new PlaneIndex.Builder(DIMS, VALUES);
+		builder.add(map("Color", "1", "Time", "2"), "first");
+		builder.add(map("Color", "0", "Time", "1"), "other");
+		builder.add(map("Color", "1", "Time", "2"), "second");
+		builder.add(map("Color", "1", "Time", "2"), "third");
+		PlaneIndex index = builder.build();
+		assertEquals(2, index.size());
+		assertEquals("other", index.get(map("Color", "0", "Time", "1")));
+		assertEquals("third", index.get(map("Color", "1", "Time", "2")));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownValueIsRejected()
+	{
+		new PlaneIndex.Builder(DIMS, VALUES).add(map("Color", "5", "Time", "1"), "a");
+	}
+
+	@Test
+	public void unknownPlanesCanBeSkipped()
+	{
+		PlaneIndex.Builder builder = new PlaneIndex.Builder(DIMS, VALUES);
+		assertTrue(builder.addIfKnown(map("Color", "0", "Time", "1"), "a"));
+		assertFalse(builder.addIfKnown(map("Color", "5", "Time", "1"), "b"));
+		assertFalse(builder.addIfKnown(map("Color", "1", "Channel", "0"), "c"));
+		assertTrue(builder.addIfKnown(map("Color", "2"), "d"));
+		PlaneIndex index = builder.build();
+		assertEquals(2, index.size());
+		assertEquals("d", index.get(map("Color", "2")));
+		assertEquals("a", index.get(map("Color", "0", "Time", "1")));
+	}
+
+	@Test
+	public void sliceMatchesEveryFilterDimension()
+	{
+		PlaneIndex index = makeFullIndex();
+		PlaneIndex color1 = index.slice(map("Color", "1"));
+		assertEquals(3, color1.size());
+		assertEquals(map("Color", "1", "Time", "1"), color1.getMap(0));
+		assertEquals(map("Color", "1", "Time", "10"), color1.getMap(2));
+		assertEquals(path("1", "10"), color1.getPath(2));
+
+		PlaneIndex one = index.slice(map("Color", "2", "Time", "2"));
+		assertEquals(1, one.size());
+		assertEquals(path("2", "2"), one.getPath(0));
+
+		assertEquals(0, index.slice(map("Color", "7")).size());
+		assertEquals(0, index.slice(map("Channel", "0")).size());
+	}
+
+	@Test
+	public void groupByFollowsTableOrder()
+	{
+		PlaneIndex.Builder builder = new PlaneIndex.Builder(DIMS, VALUES);
+		for (Entry<DimensionMap,String> e : makeFullIndex())
+		{
+			builder.add(e.getKey(), e.getValue());
+		}
+		builder.add(map("Color", "0"), "no time");
+		LinkedHashMap<DimensionMap,PlaneIndex> groups = builder.build().groupBy("Time", "Location");
+		List<DimensionMap> keys = new ArrayList<DimensionMap>(groups.keySet());
+		assertEquals(4, keys.size());
+		// The plane without a Time comes first, then the table's order of Time
+		assertEquals(new DimensionMap(), keys.get(0));
+		assertEquals(map("Time", "1"), keys.get(1));
+		assertEquals(map("Time", "2"), keys.get(2));
+		assertEquals(map("Time", "10"), keys.get(3));
+		assertEquals(1, groups.get(keys.get(0)).size());
+		PlaneIndex time10 = groups.get(map("Time", "10"));
+		assertEquals(3, time10.size());
+		for (int c = 0; c < 3; c++)
+		{
+			assertEquals(map("Color", VALUES[0][c], "Time", "10"), time10.getMap(c));
+			assertEquals(path(VALUES[0][c], "10"), time10.getPath(c));
+		}
+	}
+
+	@Test
+	public void identicalPathsAreSharedAndManyPathsSurvive()
+	{
+		int n = 5000;
+		String[] values = new String[n];
+		for (int i = 0; i < n; i++)
+		{
+			values[i] = String.valueOf(i);
+		}
+		PlaneIndex.Builder builder = new PlaneIndex.Builder(new String[] { "Z" }, new String[][] { values });
+		for (int i = 0; i < n; i++)
+		{
+			// Every other plane points at the same file as the one before it
+			builder.add(map("Z", values[i]), "/data/plane" + (i / 2) + ".tif");
+		}
+		PlaneIndex index = builder.build();
+		assertEquals(n, index.size());
+		for (int i = 0; i < n; i++)
+		{
+			assertEquals("/data/plane" + (i / 2) + ".tif", index.getPath(i));
+		}
+	}
+
+	@Test
+	public void treeMapRoundTrip()
+	{
+		TreeMap<DimensionMap,String> table = makeFullIndex().toTreeMap();
+		table.put(map("Time", "2"), "no color");
+		assertEquals(table, PlaneIndex.of(table).toTreeMap());
+	}
+
+	private static PlaneIndex makeFullIndex()
+	{
+		PlaneIndex.Builder builder = new PlaneIndex.Builder(DIMS, VALUES);
+		for (String c : VALUES[0])
+		{
+			for (String t : VALUES[1])
+			{
+				builder.add(map("Color", c, "Time", t), path(c, t));
+			}
+		}
+		return builder.build();
+	}
+
+	private static DimensionMap map(String... dimsAndValues)
+	{
+		DimensionMap ret = new DimensionMap();
+		for (int i = 0; i < dimsAndValues.length; i = i + 2)
+		{
+			ret.put(dimsAndValues[i], dimsAndValues[i + 1]);
+		}
+		return ret;
+	}
+
+	private static String path(String color, String time)
+	{
+		return "/data/Color" + color + "_Time" + time + ".tif";
+	}
+}